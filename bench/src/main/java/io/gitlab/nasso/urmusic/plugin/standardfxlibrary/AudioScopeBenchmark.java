@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gitlab.nasso.urmusic.model.project.VideoEffect.VideoEffectInstance;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioScopeBenchmark {
+	private static final String[] PARAMS = {
+		"startPoint", "endPoint", "millisOffset", "duration", "lineWidth", "precision",
+	};
+	
+	@Param({ "512", "4096", "32768" })
+	public int precision;
+	
+	private RecordingGL rec;
+	private AudioScopeVFX effect;
+	private VideoEffectInstance inst;
+	private VideoEffectArgs args;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		AudioSource.set(BenchSupport.SYNTHETIC_AUDIO);
+		
+		this.rec = RecordingGL.create();
+		this.effect = new AudioScopeVFX();
+		this.effect.globalVideoSetup(this.rec.gl());
+		
+		this.inst = BenchSupport.instance(this.effect, "precision");
+		this.inst.setupVideo(this.rec.gl());
+		
+		this.args = BenchSupport.args(this.inst, 1920, 1080, PARAMS);
+		this.args.parameters.put("precision", this.precision);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.inst.disposeVideo(this.rec.gl());
+		this.effect.globalVideoDispose(this.rec.gl());
+		
+		AudioSource.set(null);
+	}
+	
+	@Benchmark
+	public void frame(GLCalls counters) {
+		this.args.time += BenchSupport.FRAME_TIME;
+		counters.start(this.rec);
+		this.inst.applyVideo(this.rec.gl(), this.args);
+		counters.stop(this.rec);
+	}
+}
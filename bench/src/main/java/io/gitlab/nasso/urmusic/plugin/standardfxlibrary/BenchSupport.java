@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.stream.Stream;
+
+import io.gitlab.nasso.urmusic.model.project.VideoEffect;
+import io.gitlab.nasso.urmusic.model.project.VideoEffect.VideoEffectInstance;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+import io.gitlab.nasso.urmusic.model.project.param.EffectParam;
+
+final class BenchSupport {
+	public static final float FRAME_TIME = 1.0f / 60.0f;
+	
+	// Deterministic fake audio: a falling spectrum with some ripples, and a sine wave
+	public static final AudioSource SYNTHETIC_AUDIO = new AudioSource() {
+		public float getSampleRate() {
+			return 44100.0f;
+		}
+		
+		public void getFreqData(float time, float duration, float[] dest) {
+			for(int i = 0; i < dest.length; i++)
+				dest[i] = -20.0f - 40.0f * i / dest.length + 10.0f * (float) Math.sin(i * 0.1 + time * 7.0);
+		}
+		
+		public void getSamples(float time, float duration, float[] dest) {
+			for(int i = 0; i < dest.length; i++)
+				dest[i] = (float) Math.sin(time * 440.0 + i * duration * 440.0 / dest.length);
+		}
+	};
+	
+	private static Path cacheDirectory = null;
+	
+	private BenchSupport() {
+	}
+	
+	/*
+	 * The fake GL's program binaries (and the decoded test images) must never end up in the user's cache:
+	 * points "urmstdfx.cacheDir" to a temporary folder, deleted on exit. Must run before the plugin's first GL call.
+	 */
+	public static synchronized void isolateCacheDirectory() {
+		if(cacheDirectory != null) return;
+		
+		try {
+			cacheDirectory = Files.createTempDirectory("urmstdfx-bench");
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		
+		System.setProperty("urmstdfx.cacheDir", cacheDirectory.toString());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(cacheDirectory)));
+	}
+	
+	private static void delete(Path dir) {
+		try(Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch(IOException e) {
+		}
+	}
+	
+	public static VideoEffectInstance instance(VideoEffect effect, String anyParamID) {
+		VideoEffectInstance inst = effect.instance();
+		
+		if(inst.getParamByID(anyParamID) == null)
+			inst.setupParameters();
+		
+		return inst;
+	}
+	
+	// Args holding the default value of the given parameters
+	public static VideoEffectArgs args(VideoEffectInstance inst, int width, int height, String... paramIDs) {
+		VideoEffectArgs args = new VideoEffectArgs();
+		args.width = width;
+		args.height = height;
+		args.texInput = 1;
+		args.fboOutput = 2;
+		if(args.parameters == null) args.parameters = new HashMap<>();
+		
+		for(String id : paramIDs) {
+			EffectParam<?> param = inst.getParamByID(id);
+			args.parameters.put(id, param.getValue(0));
+		}
+		
+		return args;
+	}
+}
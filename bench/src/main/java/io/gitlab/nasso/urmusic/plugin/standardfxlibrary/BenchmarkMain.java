@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result comes with the
+ * bytes allocated per frame (gc.alloc.rate.norm) next to the ns per frame.
+ * Accepts the usual JMH command line options.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		Options opts = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+		
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+// Reported next to each result, see RecordingGLBenchmark for the cost of a call
+@AuxCounters(AuxCounters.Type.EVENTS)
+@State(Scope.Thread)
+public class GLCalls {
+	public long glCalls;
+	public long glCallsSkipped; // by GLState
+	
+	private long before, skippedBefore;
+	
+	void start(RecordingGL rec) {
+		this.before = rec.getCallCount();
+		this.skippedBefore = GLState.getSkippedCalls();
+	}
+	
+	void stop(RecordingGL rec) {
+		this.glCalls += rec.getCallCount() - this.before;
+		this.glCallsSkipped += GLState.getSkippedCalls() - this.skippedBefore;
+	}
+}
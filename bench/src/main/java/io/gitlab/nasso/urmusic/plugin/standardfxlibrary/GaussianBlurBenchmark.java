@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gitlab.nasso.urmusic.common.BoolValue;
+import io.gitlab.nasso.urmusic.model.project.VideoEffect.VideoEffectInstance;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+
+/**
+ * The blur with and without its output cache, on a 1080p frame whose parameters never change.
+ * The fake GL has no GPU time to measure: texelFetches estimates the GPU's work from the pixels each pass draws,
+ * 1 fetch per blitted pixel, 2 for the cache's compare pass, 1 + 2 per tap for the blur.
+ * inputChanges tells whether the cache's compare pass finds a different input (the blur then runs anyway).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GaussianBlurBenchmark {
+	private static final String[] PARAMS = {
+		"direction", "radius", "quality", "cacheOutput",
+	};
+	
+	@Param({ "4", "32" })
+	public float radius;
+	
+	@Param({ "false", "true" })
+	public boolean cacheOutput;
+	
+	@Param({ "false", "true" })
+	public boolean inputChanges;
+	
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class GPUWork {
+		public long texelFetches;
+	}
+	
+	private RecordingGL rec;
+	private GaussianBlurVFX effect;
+	private VideoEffectInstance inst;
+	private VideoEffectArgs args;
+	
+	private int blurProg;
+	private long blurFetches; // per pixel
+	
+	@Setup(Level.Trial)
+	public void setup() throws ReflectiveOperationException {
+		this.rec = RecordingGL.create();
+		this.rec.setSamplesPassed(this.inputChanges);
+		this.effect = new GaussianBlurVFX();
+		this.effect.globalVideoSetup(this.rec.gl());
+		
+		this.inst = BenchSupport.instance(this.effect, "radius");
+		this.inst.setupVideo(this.rec.gl());
+		
+		this.args = BenchSupport.args(this.inst, 1920, 1080, PARAMS);
+		this.args.parameters.put("radius", this.radius);
+		this.args.parameters.put("cacheOutput", this.cacheOutput ? BoolValue.TRUE : BoolValue.FALSE);
+		
+		// Set by the core before each effect
+		this.rec.gl().glViewport(0, 0, this.args.width, this.args.height);
+		
+		Field prog = GaussianBlurVFX.class.getDeclaredField("prog");
+		prog.setAccessible(true);
+		this.blurProg = prog.getInt(this.effect);
+		this.blurFetches = 1 + 2 * GaussianKernel.get(this.radius).getTapCount();
+		
+		// The first frame always renders, and fills the cache
+		this.inst.applyVideo(this.rec.gl(), this.args);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.inst.disposeVideo(this.rec.gl());
+		this.effect.globalVideoDispose(this.rec.gl());
+	}
+	
+	@Benchmark
+	public void frame(GLCalls counters, GPUWork work) {
+		this.args.time += BenchSupport.FRAME_TIME;
+		
+		long blur = this.rec.getPixels(this.blurProg);
+		long blit = this.rec.getPixels(0);
+		long all = this.rec.getPixelCount();
+		
+		counters.start(this.rec);
+		this.inst.applyVideo(this.rec.gl(), this.args);
+		counters.stop(this.rec);
+		
+		blur = this.rec.getPixels(this.blurProg) - blur;
+		blit = this.rec.getPixels(0) - blit;
+		all = this.rec.getPixelCount() - all;
+		
+		work.texelFetches += blur * this.blurFetches + blit + (all - blur - blit) * 2;
+	}
+}
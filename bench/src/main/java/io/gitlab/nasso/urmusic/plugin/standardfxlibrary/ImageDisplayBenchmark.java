@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.joml.Vector4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gitlab.nasso.urmusic.model.project.VideoEffect.VideoEffectInstance;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+
+// Steady state: the image is decoded and uploaded during warmup, each frame only sets up the transform and draws
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageDisplayBenchmark {
+	private static final String[] PARAMS = {
+		"bounds", "blendingMode", "opacity", "sequence", "sequenceFps", "sequenceOffset",
+	};
+	
+	private RecordingGL rec;
+	private ImageDisplayVFX effect;
+	private VideoEffectInstance inst;
+	private VideoEffectArgs args;
+	private Vector4f bounds = new Vector4f(-128, -128, 256, 256);
+	private Path image;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.image = Files.createTempFile("urmstdfx-bench", ".png");
+		ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB), "png", this.image.toFile());
+		
+		this.rec = RecordingGL.create();
+		this.effect = new ImageDisplayVFX();
+		this.effect.globalVideoSetup(this.rec.gl());
+		
+		this.inst = BenchSupport.instance(this.effect, "bounds");
+		this.inst.setupVideo(this.rec.gl());
+		
+		this.args = BenchSupport.args(this.inst, 1920, 1080, PARAMS);
+		this.args.parameters.put("source", this.image);
+		this.args.parameters.put("bounds", this.bounds);
+		
+		this.inst.applyVideo(this.rec.gl(), this.args);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.inst.disposeVideo(this.rec.gl());
+		this.effect.globalVideoDispose(this.rec.gl());
+		
+		Files.deleteIfExists(this.image);
+	}
+	
+	@Benchmark
+	public void frame(GLCalls counters) {
+		this.args.time += BenchSupport.FRAME_TIME;
+		this.bounds.x = (this.bounds.x + 1) % 512; // Keep the transform changing
+		counters.start(this.rec);
+		this.inst.applyVideo(this.rec.gl(), this.args);
+		counters.stop(this.rec);
+	}
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/**
+ * A GL3 that doesn't render anything, so the effects can run on a headless box.
+ * It counts the calls, hands out object names and reports every compile/link as successful.
+ * Being a proxy, every call allocates its argument array and boxes the primitives:
+ * RecordingGLBenchmark measures how much, to subtract it from the effects' results.
+ * It also counts the pixels each program draws, as if every draw covered the viewport (right for full-frame passes),
+ * and the pixels blitted. Occlusion queries pass or not as told: conditional rendering discards accordingly.
+ */
+class RecordingGL implements InvocationHandler {
+	private static final int GL_FRAMEBUFFER_COMPLETE = 0x8CD5;
+	
+	// Boxed once, so the handler itself doesn't allocate
+	private static final Object ZERO_INT = 0, ZERO_LONG = 0L, ZERO_FLOAT = 0.0f, ZERO_DOUBLE = 0.0;
+	private static final Object FRAMEBUFFER_COMPLETE = GL_FRAMEBUFFER_COMPLETE;
+	
+	private final Map<String, long[]> calls = new HashMap<>();
+	private long callCount = 0;
+	private int nextName = 1;
+	
+	private final Map<Integer, long[]> pixels = new HashMap<>(); // by program, 0 for blits
+	private long pixelCount = 0;
+	private int viewportWidth, viewportHeight;
+	private int program = 0;
+	private boolean conditional = false;
+	private boolean samplesPassed = true;
+	
+	private ByteBuffer mapped = ByteBuffer.allocateDirect(0);
+	
+	private GL3 proxy;
+	
+	public static RecordingGL create() {
+		// Created before any effect: the binaries it hands out are fake
+		BenchSupport.isolateCacheDirectory();
+		
+		RecordingGL rec = new RecordingGL();
+		rec.proxy = (GL3) Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] { GL3.class }, rec);
+		
+		return rec;
+	}
+	
+	public GL3 gl() {
+		return this.proxy;
+	}
+	
+	public long getCallCount() {
+		return this.callCount;
+	}
+	
+	public Map<String, long[]> getCalls() {
+		return this.calls;
+	}
+	
+	public long getPixelCount() {
+		return this.pixelCount;
+	}
+	
+	// Pixels drawn by that program, or blitted for 0
+	public long getPixels(int program) {
+		long[] count = this.pixels.get(program);
+		
+		return count != null ? count[0] : 0;
+	}
+	
+	// What the occlusion queries find, i.e. whether conditional rendering draws
+	public void setSamplesPassed(boolean samplesPassed) {
+		this.samplesPassed = samplesPassed;
+	}
+	
+	public void reset() {
+		this.calls.clear();
+		this.callCount = 0;
+		this.pixels.clear();
+		this.pixelCount = 0;
+	}
+	
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		Class<?> ret = method.getReturnType();
+		
+		if(method.getDeclaringClass() == Object.class) {
+			switch(name) {
+				case "hashCode": return System.identityHashCode(proxy);
+				case "equals": return proxy == args[0];
+				default: return "RecordingGL";
+			}
+		}
+		
+		this.callCount++;
+		long[] count = this.calls.get(name);
+		if(count == null) this.calls.put(name, count = new long[1]);
+		count[0]++;
+		
+		boolean discarded = this.conditional && !this.samplesPassed;
+		switch(name) {
+			case "glViewport":
+				this.viewportWidth = (Integer) args[2];
+				this.viewportHeight = (Integer) args[3];
+				break;
+			case "glUseProgram":
+				this.program = (Integer) args[0];
+				break;
+			case "glBeginConditionalRender":
+				this.conditional = true;
+				break;
+			case "glEndConditionalRender":
+				this.conditional = false;
+				break;
+			case "glDrawArrays":
+			case "glDrawArraysInstanced":
+			case "glDrawElements":
+			case "glDrawElementsInstanced":
+				if(!discarded) this.addPixels(this.program, (long) this.viewportWidth * this.viewportHeight);
+				break;
+			case "glBlitFramebuffer":
+				if(!discarded) this.addPixels(0, (long) Math.abs((Integer) args[6] - (Integer) args[4]) * Math.abs((Integer) args[7] - (Integer) args[5]));
+				break;
+		}
+		
+		// glGen*(n, IntBuffer) and glGet*iv(..., IntBuffer)
+		if(args != null && args.length > 0 && args[args.length - 1] instanceof IntBuffer) {
+			IntBuffer buf = (IntBuffer) args[args.length - 1];
+			
+			if(name.startsWith("glGen")) {
+				int n = (Integer) args[0];
+				for(int i = 0; i < n; i++) buf.put(buf.position() + i, this.nextName++);
+			} else if(name.startsWith("glGet") && buf.remaining() > 0) {
+				// GL_TRUE for every status query, and a non-zero size for the rest
+				buf.put(buf.position(), 1);
+			}
+		}
+		
+		if(name.startsWith("glCreate")) return this.nextName++;
+		if(name.equals("glCheckFramebufferStatus")) return FRAMEBUFFER_COMPLETE;
+		if(name.startsWith("glMapBuffer")) {
+			int size = args.length > 2 ? (int) (long) (Long) args[2] : 1 << 20;
+			if(this.mapped.capacity() < size) this.mapped = ByteBuffer.allocateDirect(size);
+			
+			this.mapped.clear();
+			return this.mapped;
+		}
+		
+		if(ret == void.class) return null;
+		if(ret == int.class) return ZERO_INT;
+		if(ret == long.class) return ZERO_LONG;
+		if(ret == float.class) return ZERO_FLOAT;
+		if(ret == double.class) return ZERO_DOUBLE;
+		if(ret == boolean.class) return Boolean.TRUE;
+		if(ret == String.class) return "RecordingGL";
+		if(GL.class.isAssignableFrom(ret) && ret.isInstance(proxy)) return proxy;
+		
+		return null;
+	}
+	
+	private void addPixels(int program, long n) {
+		long[] count = this.pixels.get(program);
+		if(count == null) this.pixels.put(program, count = new long[1]);
+		count[0] += n;
+		
+		this.pixelCount += n;
+	}
+}
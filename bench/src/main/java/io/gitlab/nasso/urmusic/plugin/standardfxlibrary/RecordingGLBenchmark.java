@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Baseline: a single call to the fake GL, nothing else.
+ * Its time and gc.alloc.rate.norm are the cost of one call, to subtract glCalls times from the effects' results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordingGLBenchmark {
+	private GL3 gl;
+	private FloatBuffer data;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.gl = RecordingGL.create().gl();
+		this.data = Buffers.newDirectFloatBuffer(1024);
+	}
+	
+	// e.g. glBindTexture, glEnable, glUniform1i: small ints are boxed from a cache
+	@Benchmark
+	public void intArgs() {
+		this.gl.glBindTexture(GL.GL_TEXTURE_2D, 1);
+	}
+	
+	// e.g. glUniform4f, glClearColor: every float is boxed
+	@Benchmark
+	public void floatArgs() {
+		this.gl.glUniform4f(1, 0.1f, 0.2f, 0.3f, 0.4f);
+	}
+	
+	// e.g. glBufferData, glTexSubImage2D
+	@Benchmark
+	public void bufferArgs() {
+		this.gl.glBufferData(GL.GL_ARRAY_BUFFER, 4096L, this.data, GL3.GL_STREAM_DRAW);
+	}
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import io.gitlab.nasso.urmusic.common.BoolValue;
+import io.gitlab.nasso.urmusic.model.project.VideoEffect.VideoEffectInstance;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+import io.gitlab.nasso.urmusic.model.project.param.RGBA32Param;
+
+/**
+ * Checks that the instanced spectrum blended straight onto the input (fixed-function blending)
+ * gives the same pixels as the offscreen coverage pass composed by porterDuff.glsl.
+ * The blend factors are the ones the effect actually sets, the rest is emulated for one pixel.
+ */
+public class DirectBlendingTest {
+	private static final String[] PARAMS = {
+		"color", "mode", "faceMode", "lineCaps", "angle", "zeroLast", "polar", "count", "size",
+		"startPoint", "endPoint", "millisOffset", "duration", "minDecibel", "maxDecibel",
+		"minFreq", "maxFreq", "minHeight", "height", "exponent", "blendingMode",
+		"instanced", "aggregation", "bandLayout", "adaptiveCount",
+	};
+	
+	private static final int DST_OUT = 5;
+	private static final int SRC_ATOP = 6;
+	
+	private static final float EPSILON = 1e-5f;
+	
+	private RecordingGL rec;
+	private GL3 gl;
+	private AudioSpectrumVFX effect;
+	private VideoEffectInstance inst;
+	private VideoEffectArgs args;
+	
+	// What the last frame did
+	private int blits;
+	private int[] blendFunc;
+	
+	@Before
+	public void setup() {
+		AudioSource.set(BenchSupport.SYNTHETIC_AUDIO);
+		
+		this.rec = RecordingGL.create();
+		this.gl = (GL3) Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] { GL3.class }, (proxy, method, a) -> {
+			switch(method.getName()) {
+				case "glBlitFramebuffer":
+					this.blits++;
+					break;
+				case "glBlendFuncSeparate":
+					this.blendFunc = new int[] { (Integer) a[0], (Integer) a[1], (Integer) a[2], (Integer) a[3] };
+					break;
+			}
+			
+			return method.invoke(this.rec.gl(), a);
+		});
+		
+		this.effect = new AudioSpectrumVFX();
+		this.effect.globalVideoSetup(this.gl);
+		
+		this.inst = BenchSupport.instance(this.effect, "count");
+		this.inst.setupVideo(this.gl);
+		
+		this.args = BenchSupport.args(this.inst, 1920, 1080, PARAMS);
+		this.args.parameters.put("mode", 1);
+		this.args.parameters.put("instanced", BoolValue.TRUE);
+		this.args.time = 1.0f;
+	}
+	
+	@After
+	public void tearDown() {
+		this.inst.disposeVideo(this.gl);
+		this.effect.globalVideoDispose(this.gl);
+		
+		AudioSource.set(null);
+	}
+	
+	@Test
+	public void dstOutMatchesOffscreen() {
+		this.compare(DST_OUT);
+	}
+	
+	@Test
+	public void srcAtopMatchesOffscreen() {
+		this.compare(SRC_ATOP);
+	}
+	
+	// A translucent color would be applied once per overlapping bar
+	@Test
+	public void translucentColorGoesOffscreen() {
+		this.frame(DST_OUT, 0x3399CC80);
+		assertEquals("dstOut blits", 0, this.blits);
+		
+		this.frame(SRC_ATOP, 0x3399CC80);
+		assertEquals("srcAtop blits", 0, this.blits);
+	}
+	
+	@Test
+	public void srcOverGoesOffscreen() {
+		this.frame(0, 0x3399CCFF);
+		assertEquals("srcOver blits", 0, this.blits);
+	}
+	
+	private void compare(int op) {
+		this.frame(op, 0x3399CCFF);
+		assertTrue("direct path taken", this.blits > 0);
+		assertTrue("blend function set", this.blendFunc != null);
+		
+		float[] color = { 0x33 / 255.0f, 0x99 / 255.0f, 0xCC / 255.0f, 1.0f };
+		Random rand = new Random(42);
+		
+		for(int n = 0; n < 1000; n++) {
+			float[] dst = { rand.nextFloat(), rand.nextFloat(), rand.nextFloat(), 0.01f + 0.99f * rand.nextFloat() };
+			
+			// Coverage of each bar over that pixel, several of them when the bars overlap
+			float[] coverages = new float[1 + rand.nextInt(4)];
+			for(int i = 0; i < coverages.length; i++)
+				coverages[i] = rand.nextInt(4) == 0 ? 1.0f : rand.nextFloat();
+			
+			float[] direct = this.direct(color, coverages, dst);
+			float[] offscreen = this.offscreen(op, color, coverages, dst);
+			
+			for(int c = 0; c < 4; c++)
+				assertEquals("op " + op + ", pixel " + n + ", channel " + c, offscreen[c], direct[c], EPSILON);
+		}
+	}
+	
+	private void frame(int op, int rgba) {
+		this.args.parameters.put("blendingMode", op);
+		this.args.parameters.put("color", new RGBA32Param("color", rgba).getValue(0));
+		
+		this.blits = 0;
+		this.blendFunc = null;
+		this.inst.applyVideo(this.gl, this.args);
+	}
+	
+	// Each bar's fragment blended onto the input with the factors the effect set
+	private float[] direct(float[] color, float[] coverages, float[] dst) {
+		float[] out = dst.clone();
+		
+		for(float cov : coverages) {
+			float as = color[3] * cov;
+			
+			for(int c = 0; c < 3; c++)
+				out[c] = color[c] * factor(this.blendFunc[0], as) + out[c] * factor(this.blendFunc[1], as);
+			out[3] = as * factor(this.blendFunc[2], as) + out[3] * factor(this.blendFunc[3], as);
+		}
+		
+		return out;
+	}
+	
+	// Coverage accumulated with glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA), then PD_compose
+	private float[] offscreen(int op, float[] color, float[] coverages, float[] dst) {
+		float coverage = 0.0f;
+		for(float cov : coverages)
+			coverage = cov + coverage * (1.0f - cov);
+		
+		float as = color[3] * coverage;
+		float ab = dst[3];
+		float fa, fb;
+		
+		switch(op) {
+			case DST_OUT:
+				fa = 0.0f;
+				fb = 1.0f - as;
+				break;
+			case SRC_ATOP:
+				fa = ab;
+				fb = 1.0f - as;
+				break;
+			default:
+				throw new IllegalArgumentException("op " + op);
+		}
+		
+		float ao = fa * as + fb * ab;
+		float[] out = new float[4];
+		
+		for(int c = 0; c < 3; c++)
+			out[c] = ao == 0.0f ? dst[c] : (as * fa * color[c] + ab * fb * dst[c]) / ao;
+		out[3] = ao;
+		
+		return out;
+	}
+	
+	private static float factor(int f, float as) {
+		if(f == GL.GL_ZERO) return 0.0f;
+		if(f == GL.GL_ONE) return 1.0f;
+		if(f == GL.GL_SRC_ALPHA) return as;
+		if(f == GL.GL_ONE_MINUS_SRC_ALPHA) return 1.0f - as;
+		
+		throw new IllegalArgumentException("blend factor " + f);
+	}
+}
@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.FloatBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import io.gitlab.nasso.urmusic.common.BoolValue;
+import io.gitlab.nasso.urmusic.model.project.VideoEffect.VideoEffectInstance;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+import io.gitlab.nasso.urmusic.model.renderer.video.glvg.GLVG;
+import io.gitlab.nasso.urmusic.model.renderer.video.glvg.VGLineCap;
+
+/**
+ * Checks that the instanced path draws the same shapes as the GLVG one.
+ * The uniforms, amplitudes and instance count the effect sends to the fake GL drive vertex(), a port of
+ * instanced_vert.vs: each quad it emits, read through the local coordinates the fragment shader shapes with,
+ * must be the segment (or dot) GLVG was given, with the same width (or radius) and room for the caps.
+ */
+public class InstancedSpectrumTest {
+	private static final String VERTEX_SHADER = "res/shaders/gl3/fx/audio_spectrum/instanced_vert.vs";
+	
+	// Of the shader vertex() is a port of: if it changes, update vertex() and then this
+	private static final String VERTEX_SHADER_SHA256 = "9e304e3e6f1a8dbdcf082c5f4597c3838862bee0be65329d94494652246e25ca";
+	
+	private static final String[] PARAMS = {
+		"color", "mode", "faceMode", "lineCaps", "angle", "zeroLast", "polar", "count", "size",
+		"startPoint", "endPoint", "millisOffset", "duration", "minDecibel", "maxDecibel",
+		"minFreq", "maxFreq", "minHeight", "height", "exponent", "blendingMode",
+		"instanced", "aggregation", "bandLayout", "adaptiveCount",
+	};
+	
+	private static final float EPSILON = 1e-3f;
+	
+	// Every moveTo/lineTo pair (lines) as x0, y0, x1, y1, or oval as x, y, w, h
+	private static class ShapeRecorder extends GLVG {
+		private final List<float[]> shapes = new ArrayList<>();
+		private float lineWidth;
+		private VGLineCap lineCaps;
+		private float lastX, lastY;
+		
+		public ShapeRecorder() {
+			super(RecordingGL.create().gl());
+		}
+		
+		public void setLineWidth(float w) {
+			this.lineWidth = w;
+		}
+		
+		public void setLineCaps(VGLineCap caps) {
+			this.lineCaps = caps;
+		}
+		
+		public void moveTo(float x, float y) {
+			this.lastX = x;
+			this.lastY = y;
+		}
+		
+		public void lineTo(float x, float y) {
+			this.shapes.add(new float[] { this.lastX, this.lastY, x, y });
+			this.lastX = x;
+			this.lastY = y;
+		}
+		
+		public void oval(float x, float y, float w, float h) {
+			this.shapes.add(new float[] { x, y, w, h });
+		}
+	}
+	
+	private RecordingGL rec;
+	private GL3 gl;
+	private AudioSpectrumVFX effect;
+	private VideoEffectInstance inst;
+	private VideoEffectArgs args;
+	private ShapeRecorder vg;
+	
+	// What the effect sent: uniform locations are handed out here so each one can be told apart
+	private final Map<Integer, String> uniformNames = new HashMap<>();
+	private final Map<Integer, Integer> uniformPrograms = new HashMap<>();
+	private final Map<Integer, float[]> uniformValues = new HashMap<>();
+	private int program;
+	
+	// What the last instanced draw call used
+	private int drawProgram;
+	private int instances;
+	private float[] amplitudes;
+	
+	@Before
+	public void setup() throws Exception {
+		AudioSource.set(BenchSupport.SYNTHETIC_AUDIO);
+		
+		this.rec = RecordingGL.create();
+		this.gl = (GL3) Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] { GL3.class }, (proxy, method, a) -> {
+			switch(method.getName()) {
+				case "glGetUniformLocation":
+					int loc = this.uniformNames.size() + 1;
+					this.uniformNames.put(loc, (String) a[1]);
+					this.uniformPrograms.put(loc, (Integer) a[0]);
+					return loc;
+				case "glUseProgram":
+					this.program = (Integer) a[0];
+					break;
+				case "glUniform1i":
+					this.uniformValues.put((Integer) a[0], new float[] { (Integer) a[1] });
+					break;
+				case "glUniform1f":
+					this.uniformValues.put((Integer) a[0], new float[] { (Float) a[1] });
+					break;
+				case "glUniform2f":
+					this.uniformValues.put((Integer) a[0], new float[] { (Float) a[1], (Float) a[2] });
+					break;
+				case "glUniform4f":
+					this.uniformValues.put((Integer) a[0], new float[] { (Float) a[1], (Float) a[2], (Float) a[3], (Float) a[4] });
+					break;
+				case "glBufferData":
+					if((Integer) a[0] == GL3.GL_TEXTURE_BUFFER) {
+						FloatBuffer buf = ((FloatBuffer) a[2]).duplicate();
+						this.amplitudes = new float[(int) ((Long) a[1] / Float.BYTES)];
+						buf.get(this.amplitudes);
+					}
+					break;
+				case "glDrawArraysInstanced":
+					assertEquals("primitive", GL.GL_TRIANGLE_STRIP, (int) (Integer) a[0]);
+					assertEquals("vertices", 4, (int) (Integer) a[2]);
+					this.drawProgram = this.program;
+					this.instances = (Integer) a[3];
+					break;
+			}
+			
+			return method.invoke(this.rec.gl(), a);
+		});
+		
+		this.effect = new AudioSpectrumVFX();
+		this.effect.globalVideoSetup(this.gl);
+		
+		this.inst = BenchSupport.instance(this.effect, "count");
+		this.inst.setupVideo(this.gl);
+		
+		this.vg = new ShapeRecorder();
+		Field f = this.inst.getClass().getDeclaredField("vg");
+		f.setAccessible(true);
+		f.set(this.inst, this.vg);
+		
+		this.args = BenchSupport.args(this.inst, 1920, 1080, PARAMS);
+		this.args.parameters.put("adaptiveCount", BoolValue.FALSE);
+		this.args.parameters.put("blendingMode", 8);
+		this.args.parameters.put("count", 64);
+		this.args.parameters.put("size", 6.0f);
+		this.args.time = 1.0f;
+	}
+	
+	@After
+	public void tearDown() {
+		this.inst.disposeVideo(this.gl);
+		this.effect.globalVideoDispose(this.gl);
+		
+		AudioSource.set(null);
+	}
+	
+	@Test
+	public void vertexPortIsUpToDate() throws Exception {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		
+		try(InputStream in = InstancedSpectrumTest.class.getClassLoader().getResourceAsStream(VERTEX_SHADER)) {
+			byte[] buf = new byte[4096];
+			int n;
+			while((n = in.read(buf)) != -1) sha.update(buf, 0, n);
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		for(byte b : sha.digest()) hex.append(String.format("%02x", b));
+		
+		assertEquals(VERTEX_SHADER + " changed, update vertex() to match", VERTEX_SHADER_SHA256, hex.toString());
+	}
+	
+	@Test
+	public void linesMatchForEveryFaceModeAndCap() {
+		for(int faceMode = 0; faceMode < 4; faceMode++) {
+			for(int lineCaps = 0; lineCaps < 3; lineCaps++)
+				this.compare(1, faceMode, lineCaps, false);
+		}
+	}
+	
+	@Test
+	public void dotsMatchForEveryFaceMode() {
+		for(int faceMode = 0; faceMode < 4; faceMode++)
+			this.compare(3, faceMode, 0, false);
+	}
+	
+	@Test
+	public void polarMatches() {
+		for(int faceMode = 0; faceMode < 4; faceMode++) {
+			this.compare(1, faceMode, 1, true);
+			this.compare(3, faceMode, 0, true);
+		}
+	}
+	
+	private void compare(int mode, int faceMode, int lineCaps, boolean polar) {
+		boolean dots = mode == 3;
+		String what = (dots ? "dots" : "lines") + ", faceMode " + faceMode + ", lineCaps " + lineCaps + (polar ? ", polar" : "");
+		
+		this.args.parameters.put("mode", mode);
+		this.args.parameters.put("faceMode", faceMode);
+		this.args.parameters.put("lineCaps", lineCaps);
+		this.args.parameters.put("polar", polar ? BoolValue.TRUE : BoolValue.FALSE);
+		
+		this.args.parameters.put("instanced", BoolValue.FALSE);
+		this.vg.shapes.clear();
+		this.inst.applyVideo(this.gl, this.args);
+		
+		this.args.parameters.put("instanced", BoolValue.TRUE);
+		this.instances = -1;
+		this.inst.applyVideo(this.gl, this.args);
+		
+		List<float[]> expected = this.vg.shapes;
+		assertTrue(what + ": instanced draw", this.instances >= 0);
+		assertEquals(what + ": shape count", expected.size(), this.instances);
+		
+		assertEquals(what + ": fragment mode", dots ? 1 : 0, (int) this.uniform("mode", 0));
+		if(!dots) assertEquals(what + ": fragment caps", this.vg.lineCaps.ordinal(), (int) this.uniform("lineCaps", 0));
+		
+		for(int id = 0; id < this.instances; id++) {
+			String shape = what + ", shape " + id;
+			float[] e = expected.get(id);
+			
+			float[][] v = new float[4][];
+			for(int vid = 0; vid < 4; vid++) v[vid] = this.vertex(id, vid);
+			
+			// Every varying of the triangle strip is interpolated linearly: solve local -> pixels from three vertices
+			float[] m = this.localToPixels(v);
+			float[] fourth = apply(m, v[3][2], v[3][3]);
+			assertEquals(shape + ": quad x", fourth[0], v[3][0], EPSILON);
+			assertEquals(shape + ": quad y", fourth[1], v[3][1], EPSILON);
+			
+			float length = v[0][4];
+			float halfWidth = v[0][5];
+			float[] p0 = apply(m, 0.0f, 0.0f);
+			
+			if(dots) {
+				assertEquals(shape + ": x", e[0], p0[0], EPSILON);
+				assertEquals(shape + ": y", e[1], p0[1], EPSILON);
+				assertEquals(shape + ": radius", e[2], halfWidth, EPSILON);
+				assertEquals(shape + ": round", e[2], e[3], 0.0f);
+				
+				this.assertCovers(shape, v, -halfWidth, halfWidth, halfWidth);
+			} else {
+				float[] p1 = apply(m, length, 0.0f);
+				assertEquals(shape + ": x0", e[0], p0[0], EPSILON);
+				assertEquals(shape + ": y0", e[1], p0[1], EPSILON);
+				assertEquals(shape + ": x1", e[2], p1[0], EPSILON);
+				assertEquals(shape + ": y1", e[3], p1[1], EPSILON);
+				assertEquals(shape + ": width", this.vg.lineWidth, halfWidth * 2.0f, EPSILON);
+				
+				float cap = this.vg.lineCaps == VGLineCap.BUTT ? 0.0f : halfWidth;
+				this.assertCovers(shape, v, -cap, length + cap, halfWidth);
+			}
+		}
+	}
+	
+	// The quad must leave room for the whole shape, the anti-aliased edge included
+	private void assertCovers(String shape, float[][] v, float x0, float x1, float halfHeight) {
+		float minX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for(float[] vert : v) {
+			minX = Math.min(minX, vert[2]);
+			maxX = Math.max(maxX, vert[2]);
+			minY = Math.min(minY, vert[3]);
+			maxY = Math.max(maxY, vert[3]);
+		}
+		
+		assertTrue(shape + ": quad covers the start", minX <= x0 - 0.5f);
+		assertTrue(shape + ": quad covers the end", maxX >= x1 + 0.5f);
+		assertTrue(shape + ": quad covers the sides", minY <= -halfHeight - 0.5f && maxY >= halfHeight + 0.5f);
+	}
+	
+	// Affine map from pass_local to pixels: x, y = m[0] + m[2] * lx + m[4] * ly, m[1] + m[3] * lx + m[5] * ly
+	private float[] localToPixels(float[][] v) {
+		float dx1 = v[1][2] - v[0][2], dy1 = v[1][3] - v[0][3];
+		float dx2 = v[2][2] - v[0][2], dy2 = v[2][3] - v[0][3];
+		float det = dx1 * dy2 - dx2 * dy1;
+		assertTrue("quad isn't degenerate", Math.abs(det) > EPSILON);
+		
+		float ex1 = v[1][0] - v[0][0], ey1 = v[1][1] - v[0][1];
+		float ex2 = v[2][0] - v[0][0], ey2 = v[2][1] - v[0][1];
+		
+		float[] m = new float[6];
+		m[2] = (ex1 * dy2 - ex2 * dy1) / det;
+		m[3] = (ey1 * dy2 - ey2 * dy1) / det;
+		m[4] = (ex2 * dx1 - ex1 * dx2) / det;
+		m[5] = (ey2 * dx1 - ey1 * dx2) / det;
+		m[0] = v[0][0] - m[2] * v[0][2] - m[4] * v[0][3];
+		m[1] = v[0][1] - m[3] * v[0][2] - m[5] * v[0][3];
+		
+		return m;
+	}
+	
+	private static float[] apply(float[] m, float lx, float ly) {
+		return new float[] { m[0] + m[2] * lx + m[4] * ly, m[1] + m[3] * lx + m[5] * ly };
+	}
+	
+	/*
+	 * instanced_vert.vs, for one vertex of one instance.
+	 * Returns its position in pixels from the center (gl_Position scaled back with the frame size, GLVG's space),
+	 * then pass_local, pass_length and pass_halfWidth.
+	 */
+	private float[] vertex(int instanceID, int vertexID) {
+		float[] startEnd = this.uniform("params.startEnd");
+		float[] expand = this.uniform("params.expand");
+		float[] viewSize = this.uniform("params.viewSize");
+		float size = this.uniform("params.size", 0);
+		int count = (int) this.uniform("params.count", 0);
+		int mode = (int) this.uniform("params.mode", 0);
+		int faceMode = (int) this.uniform("params.faceMode", 0);
+		int lineCaps = (int) this.uniform("params.lineCaps", 0);
+		boolean polar = this.uniform("params.polar", 0) != 0.0f;
+		
+		int bar = instanceID;
+		int face = faceMode;
+		
+		if(mode == 1 && faceMode == 2) {
+			bar = instanceID / 2;
+			face = instanceID % 2;
+		} else if(faceMode == 3) {
+			face = bar % 2;
+		}
+		
+		float p = (float) bar / (float) (count - 1);
+		float freqVal = this.amplitudes[bar];
+		
+		float[] s = { startEnd[0] + (startEnd[2] - startEnd[0]) * p, startEnd[1] + (startEnd[3] - startEnd[1]) * p };
+		float[] offset = { freqVal * expand[0] + expand[2], freqVal * expand[1] + expand[3] };
+		float[] a = { s[0] - offset[0], s[1] + offset[1] };
+		float[] b = { s[0] + offset[0], s[1] - offset[1] };
+		
+		float cx = vertexID & 1;
+		float cy = vertexID >> 1;
+		float[] pos;
+		float[] local;
+		float length, halfWidth;
+		
+		if(mode == 1) {
+			float[] center = face == 0 ? a : b;
+			if(polar) center = toPolar(center, viewSize);
+			
+			local = new float[] { (cx * 2.0f - 1.0f) * (size + 1.0f), (cy * 2.0f - 1.0f) * (size + 1.0f) };
+			length = 0.0f;
+			halfWidth = size;
+			
+			pos = new float[] { center[0] + local[0], center[1] + local[1] };
+		} else {
+			float[] p0 = face == 2 ? a : s;
+			float[] p1 = face == 0 ? a : b;
+			
+			if(polar) {
+				p0 = toPolar(p0, viewSize);
+				p1 = toPolar(p1, viewSize);
+			}
+			
+			halfWidth = size * 0.5f;
+			length = (float) Math.hypot(p1[0] - p0[0], p1[1] - p0[1]);
+			float[] dir = length > 0.0f ? new float[] { (p1[0] - p0[0]) / length, (p1[1] - p0[1]) / length } : new float[] { 1.0f, 0.0f };
+			float[] normal = { -dir[1], dir[0] };
+			float ext = (lineCaps == 0 ? 0.0f : halfWidth) + 1.0f;
+			
+			local = new float[] { mix(-ext, length + ext, cx), mix(-halfWidth - 1.0f, halfWidth + 1.0f, cy) };
+			
+			pos = new float[] {
+				p0[0] + dir[0] * local[0] + normal[0] * local[1],
+				p0[1] + dir[1] * local[0] + normal[1] * local[1],
+			};
+		}
+		
+		float glX = pos[0] / (viewSize[0] * 0.5f);
+		float glY = pos[1] / (viewSize[1] * 0.5f);
+		
+		return new float[] {
+			glX * this.args.width * 0.5f, glY * this.args.height * 0.5f,
+			local[0], local[1], length, halfWidth,
+		};
+	}
+	
+	private static float[] toPolar(float[] v, float[] viewSize) {
+		double a = v[0] / viewSize[0] * Math.PI * 2.0 + Math.PI * 0.5;
+		
+		return new float[] { (float) Math.cos(a) * v[1], (float) Math.sin(a) * v[1] };
+	}
+	
+	private static float mix(float x, float y, float a) {
+		return x + (y - x) * a;
+	}
+	
+	private float uniform(String name, int i) {
+		return this.uniform(name)[i];
+	}
+	
+	// Value last set for that uniform of the program the instanced draw used
+	private float[] uniform(String name) {
+		for(Map.Entry<Integer, String> e : this.uniformNames.entrySet()) {
+			if(!e.getValue().equals(name) || this.uniformPrograms.get(e.getKey()) != this.drawProgram) continue;
+			
+			float[] value = this.uniformValues.get(e.getKey());
+			assertTrue("uniform " + name + " set", value != null);
+			return value;
+		}
+		
+		throw new AssertionError("no uniform " + name);
+	}
+}
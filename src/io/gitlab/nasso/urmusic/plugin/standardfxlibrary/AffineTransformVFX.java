@@ -43,6 +43,7 @@ public class AffineTransformVFX extends VideoEffect {
 	private NGLUtils glu = new NGLUtils("affine transform global", AffineTransformVFX.class.getClassLoader());
 	
 	private int prog, quadVAO;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
 	private int loc_inputTex, loc_xform, loc_opacity;
 	
 	public class AffineTransformVFXInstance extends VideoEffectInstance {
@@ -56,9 +57,12 @@ public class AffineTransformVFX extends VideoEffect {
 		}
 		
 		public void setupVideo(GL3 gl) {
+			AffineTransformVFX.this.video.setup(gl);
 		}
 
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
 			Vector2fc translation = (Vector2fc) args.parameters.get(PNAME_translation);
 			float rotation = (float) args.parameters.get(PNAME_rotation);
 			Vector2fc scale = (Vector2fc) args.parameters.get(PNAME_scale);
@@ -70,13 +74,13 @@ public class AffineTransformVFX extends VideoEffect {
 			this.xform.rotateZ(rotation / 180.0f * MathUtils.PI);
 			this.xform.scale(scale.x() * args.width, scale.y() * args.height, 1.0f);
 			
-			gl.glUseProgram(AffineTransformVFX.this.prog);
-			AffineTransformVFX.this.glu.uniformTexture(gl, AffineTransformVFX.this.loc_inputTex, args.texInput, 0);
+			GLState.useProgram(gl, AffineTransformVFX.this.prog);
+			GLState.uniformTexture(gl, AffineTransformVFX.this.loc_inputTex, args.texInput, 0);
 			
-			AffineTransformVFX.this.glu.uniformMatrix(gl, AffineTransformVFX.this.loc_xform, this.xform);
-			gl.glUniform1f(AffineTransformVFX.this.loc_opacity, opacity);
+			GLState.uniformMatrix(gl, AffineTransformVFX.this.loc_xform, this.xform);
+			GLState.uniform1f(gl, AffineTransformVFX.this.loc_opacity, opacity);
 			
-			gl.glBindVertexArray(AffineTransformVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, AffineTransformVFX.this.quadVAO);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 
@@ -86,11 +90,17 @@ public class AffineTransformVFX extends VideoEffect {
 	}
 	
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		ProgramLoader.prefetch("fx/affine_transform/", "main_vert.vs", "main_frag.fs");
+		
 		return new AffineTransformVFXInstance();
 	}
 	
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = this.glu.createProgram(gl, "fx/affine_transform/", "main_vert.vs", "main_frag.fs");
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		this.prog = ProgramLoader.createProgram(gl, "fx/affine_transform/", "main_vert.vs", "main_frag.fs");
 
 		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
 		this.loc_xform = gl.glGetUniformLocation(this.prog, "xform");
@@ -99,7 +109,13 @@ public class AffineTransformVFX extends VideoEffect {
 		this.quadVAO = this.glu.createFullQuadVAO(gl);
 	}
 
+	private void disposeGlobalVideo(GL3 gl) {
+		GLState.deleteProgram(gl, this.prog);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
 		this.glu.dispose(gl);
 	}
 
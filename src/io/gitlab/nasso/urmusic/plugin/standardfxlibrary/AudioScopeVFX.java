@@ -25,7 +25,6 @@ import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import io.gitlab.nasso.urmusic.common.MathUtils;
-import io.gitlab.nasso.urmusic.model.UrmusicModel;
 import io.gitlab.nasso.urmusic.model.project.VideoEffect;
 import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
 import io.gitlab.nasso.urmusic.model.project.param.FloatParam;
@@ -70,7 +69,7 @@ public class AudioScopeVFX extends VideoEffect {
 			if(precision != this.audioData.length)
 				this.audioData = new float[precision];
 			
-			UrmusicModel.getAudioRenderer().getSamples(args.time + millisOffset / 1000.0f, duration / 1000.0f, this.audioData);
+			AudioSource.get().getSamples(args.time + millisOffset / 1000.0f, duration / 1000.0f, this.audioData);
 			
 			gl.glClear(GL.GL_COLOR_BUFFER_BIT);
 			
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import io.gitlab.nasso.urmusic.model.UrmusicModel;
+
+/**
+ * Where the audio effects of the plugin get their data from.
+ * Defaults to the model's audio renderer. Can be replaced to run the effects without one (e.g. benchmarks).
+ */
+abstract class AudioSource {
+	private static final AudioSource MODEL = new AudioSource() {
+		public float getSampleRate() {
+			return UrmusicModel.getAudioRenderer().getSampleRate();
+		}
+		
+		public void getFreqData(float time, float duration, float[] dest) {
+			UrmusicModel.getAudioRenderer().getFreqData(time, duration, dest);
+		}
+		
+		public void getSamples(float time, float duration, float[] dest) {
+			UrmusicModel.getAudioRenderer().getSamples(time, duration, dest);
+		}
+	};
+	
+	private static volatile AudioSource current = MODEL;
+	
+	public static AudioSource get() {
+		return current;
+	}
+	
+	// null restores the default source
+	public static void set(AudioSource source) {
+		current = source == null ? MODEL : source;
+		
+		FreqDataCache.clear();
+	}
+	
+	public abstract float getSampleRate();
+	public abstract void getFreqData(float time, float duration, float[] dest);
+	public abstract void getSamples(float time, float duration, float[] dest);
+}
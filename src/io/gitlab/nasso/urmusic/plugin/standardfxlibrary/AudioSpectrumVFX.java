@@ -21,14 +21,17 @@ package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
 
 import static com.jogamp.opengl.GL.*;
 
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
 import org.joml.Vector2fc;
 
+import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.GL3;
 
 import io.gitlab.nasso.urmusic.common.BoolValue;
 import io.gitlab.nasso.urmusic.common.MathUtils;
 import io.gitlab.nasso.urmusic.common.RGBA32;
-import io.gitlab.nasso.urmusic.model.UrmusicModel;
 import io.gitlab.nasso.urmusic.model.project.VideoEffect;
 import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
 import io.gitlab.nasso.urmusic.model.project.param.AngleParam;
@@ -65,6 +68,25 @@ public class AudioSpectrumVFX extends VideoEffect {
 	private static final String PNAME_height = "height";
 	private static final String PNAME_exponent = "exponent";
 	private static final String PNAME_blendingMode = "blendingMode";
+	private static final String PNAME_instanced = "instanced";
+	private static final String PNAME_aggregation = "aggregation";
+	private static final String PNAME_bandLayout = "bandLayout";
+	private static final String PNAME_adaptiveCount = "adaptiveCount";
+	
+	private static final int LOC_blend_inputTex = 0;
+	private static final int LOC_blend_destTex = 1;
+	private static final int LOC_blend_color = 2;
+	
+	// Max bar count for the instanced renderer (min GL_MAX_TEXTURE_BUFFER_SIZE)
+	private static final int INSTANCED_MAX_COUNT = 65536;
+	
+	// Adaptive count, polar mode: a spectrum around (almost) the center still fans out, keep the bars of this radius
+	private static final float ADAPTIVE_MIN_RADIUS = 64.0f;
+	
+	// What the bars are rendered into
+	private static final int TARGET_OUTPUT = 0; // Cleared output, actual color ("copy" mode)
+	private static final int TARGET_COVERAGE = 1; // Cleared single channel offscreen texture, coverage only
+	private static final int TARGET_DIRECT = 2; // Output already containing the input, fixed-function blending
 	
 	private class AudioSpectrumVFXInstance extends VideoEffectInstance {
 		private VideoEffectArgs args;
@@ -90,24 +112,62 @@ public class AudioSpectrumVFX extends VideoEffect {
 		private float height;
 		private float exponent;
 		private int blendingMode;
+		private boolean instanced;
+		private int aggregation;
+		private boolean logarithmic;
+		private boolean adaptiveCount;
+		
+		private float expandX;
+		private float expandY;
+		private float minExpandX;
+		private float minExpandY;
 		
 		private GLVG vg;
 		private NGLUtils glu = new NGLUtils("audio spectrum instance glu", AudioSpectrumVFX.class.getClassLoader());
 		
-		private int gl_dest_fbo;
-		private int gl_dest_fbo_tex;
+		private int gl_copy_fbo;
 		private int gl_vao_fullQuad;
-		private int gl_prog_blend;
-		private int gl_prog_blend_inputTex;
-		private int gl_prog_blend_destTex;
-		private int gl_prog_blend_blendingMode;
 		
-		private int dest_width = -1;
-		private int dest_height = -1;
+		// One program per blending mode, built when first used
+		private final ProgramVariants gl_prog_blend = new ProgramVariants("fx/audio_spectrum/", "main_vert.vs", "main_frag.fs", ProgramVariants.PD_OP, ProgramVariants.PD_OP_COUNT,
+			"inputTex", "destTex", "color"
+		);
 		
-		private float[] audioData = new float[AudioRenderer.FFT_SIZE];
+		private final IntBuffer bufInstanced = Buffers.newDirectIntBuffer(1);
+		private FloatBuffer instancedAmplitudes = Buffers.newDirectFloatBuffer(0);
+		private int gl_inst_vao;
+		private int gl_inst_amplitudes_buf;
+		private int gl_inst_amplitudes_tex;
+		private int gl_prog_inst;
+		private int gl_prog_inst_amplitudes;
+		private int gl_prog_inst_startEnd;
+		private int gl_prog_inst_expand;
+		private int gl_prog_inst_viewSize;
+		private int gl_prog_inst_size;
+		private int gl_prog_inst_count;
+		private int gl_prog_inst_mode;
+		private int gl_prog_inst_faceMode;
+		private int gl_prog_inst_lineCaps;
+		private int gl_prog_inst_polar;
+		private int gl_prog_inst_color;
+		private int gl_prog_inst_fragMode;
+		private int gl_prog_inst_fragLineCaps;
+		
+		private float[] audioData; // Shared with FreqDataCache, read-only
+		private SpectrumBinTable bins = new SpectrumBinTable();
+		private SpectrumBands bands = new SpectrumBands();
+		private float[] amplitudes = new float[0];
 		private float[] xy = new float[2];
 		
+		// Per-bar (cos, sin) of the polar angle, then the start and end points
+		private float[] polarCos = new float[0];
+		private float[] polarSin = new float[0];
+		private boolean polarTableValid = false;
+		private int polarTableCount;
+		private float polarTableStartX;
+		private float polarTableEndX;
+		private int polarTableWidth;
+		
 		public void setupParameters() {
 			// That's where the order matters
 			this.addParameter(new RGBA32Param(PNAME_color, 0xFFFFFFFF));
@@ -143,20 +203,125 @@ public class AudioSpectrumVFX extends VideoEffect {
 				"add",
 				"xor"
 			));
+			this.addParameter(new BooleanParam(PNAME_instanced, BoolValue.FALSE));
+			this.addParameter(new OptionParam(PNAME_aggregation, 0, "point", "average", "rms", "max"));
+			this.addParameter(new OptionParam(PNAME_bandLayout, 0, "linear", "logarithmic"));
+			this.addParameter(new BooleanParam(PNAME_adaptiveCount, BoolValue.FALSE));
 		}
 		
 		public void setupVideo(GL3 gl) {
 			this.vg = new GLVG(gl);
 			
-			this.gl_dest_fbo = this.glu.genFramebuffer(gl);
-			this.gl_dest_fbo_tex = this.glu.genTexture(gl);
+			this.gl_copy_fbo = this.glu.genFramebuffer(gl);
 			
 			this.gl_vao_fullQuad = this.glu.createFullQuadVAO(gl);
 			
-			this.gl_prog_blend = this.glu.createProgram(gl, "fx/audio_spectrum/", "main_vert.vs", "main_frag.fs");
-			this.gl_prog_blend_inputTex = gl.glGetUniformLocation(this.gl_prog_blend, "inputTex");
-			this.gl_prog_blend_destTex = gl.glGetUniformLocation(this.gl_prog_blend, "destTex");
-			this.gl_prog_blend_blendingMode = gl.glGetUniformLocation(this.gl_prog_blend, "blendingMode");
+			gl.glGenVertexArrays(1, this.bufInstanced);
+			this.gl_inst_vao = this.bufInstanced.get(0);
+			
+			gl.glGenBuffers(1, this.bufInstanced);
+			this.gl_inst_amplitudes_buf = this.bufInstanced.get(0);
+			
+			this.gl_inst_amplitudes_tex = this.glu.genTexture(gl);
+			gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, this.gl_inst_amplitudes_tex);
+			gl.glTexBuffer(GL3.GL_TEXTURE_BUFFER, GL3.GL_R32F, this.gl_inst_amplitudes_buf);
+			gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, 0);
+			
+			this.gl_prog_inst = ProgramLoader.createProgram(gl, "fx/audio_spectrum/", "instanced_vert.vs", "instanced_frag.fs");
+			this.gl_prog_inst_amplitudes = gl.glGetUniformLocation(this.gl_prog_inst, "amplitudes");
+			this.gl_prog_inst_startEnd = gl.glGetUniformLocation(this.gl_prog_inst, "params.startEnd");
+			this.gl_prog_inst_expand = gl.glGetUniformLocation(this.gl_prog_inst, "params.expand");
+			this.gl_prog_inst_viewSize = gl.glGetUniformLocation(this.gl_prog_inst, "params.viewSize");
+			this.gl_prog_inst_size = gl.glGetUniformLocation(this.gl_prog_inst, "params.size");
+			this.gl_prog_inst_count = gl.glGetUniformLocation(this.gl_prog_inst, "params.count");
+			this.gl_prog_inst_mode = gl.glGetUniformLocation(this.gl_prog_inst, "params.mode");
+			this.gl_prog_inst_faceMode = gl.glGetUniformLocation(this.gl_prog_inst, "params.faceMode");
+			this.gl_prog_inst_lineCaps = gl.glGetUniformLocation(this.gl_prog_inst, "params.lineCaps");
+			this.gl_prog_inst_polar = gl.glGetUniformLocation(this.gl_prog_inst, "params.polar");
+			this.gl_prog_inst_color = gl.glGetUniformLocation(this.gl_prog_inst, "color");
+			this.gl_prog_inst_fragMode = gl.glGetUniformLocation(this.gl_prog_inst, "mode");
+			this.gl_prog_inst_fragLineCaps = gl.glGetUniformLocation(this.gl_prog_inst, "lineCaps");
+		}
+		
+		private void computeExpand() {
+			float dx = this.endPoint.x() - this.startPoint.x();
+			float dy = this.endPoint.y() - this.startPoint.y();
+			float distInv = (float) (1.0 / Math.sqrt(dx * dx + dy * dy));
+			float cosang = MathUtils.cosf(-this.angle);
+			float sinang = MathUtils.sinf(-this.angle);
+			
+			this.expandX = (cosang * dy + sinang * dx) * distInv * this.height;
+			this.expandY = (sinang * dy - cosang * dx) * distInv * this.height;
+			this.minExpandX = (cosang * dy + sinang * dx) * distInv * this.minHeight;
+			this.minExpandY = (sinang * dy - cosang * dx) * distInv * this.minHeight;
+		}
+		
+		private void computeAmplitudes() {
+			if(this.amplitudes.length < this.count)
+				this.amplitudes = new float[this.count];
+			
+			float dbRangeInv = 1.0f / (this.maxDecibel - this.minDecibel);
+			
+			// Aggregated bands: one pass over the bins, then O(1) per bar
+			int bandAggregation = this.aggregation - 1;
+			if(this.aggregation != 0) this.bands.build(this.audioData, AudioRenderer.FFT_SIZE, bandAggregation);
+			
+			for(int i = 0; i < this.count; i++) {
+				float db = this.aggregation == 0
+					? this.bins.sample(this.audioData, i)
+					: this.bands.query(this.bins.getBandLow(i), this.bins.getBandHigh(i), bandAggregation);
+				
+				// [0..1] frequency amplitude
+				float freqVal = MathUtils.clamp(Math.max((db - this.minDecibel), 0.0f) * dbRangeInv, 0.0f, 1.0f);
+				
+				// Skip powf for the common presets
+				if(this.exponent == 2.0f) freqVal *= freqVal;
+				else if(this.exponent != 1.0f) freqVal = MathUtils.powf(freqVal, this.exponent);
+				
+				this.amplitudes[i] = freqVal;
+			}
+		}
+		
+		// Length of the start -> end line on screen, in pixels
+		private float screenLength() {
+			float dx = this.endPoint.x() - this.startPoint.x();
+			float dy = this.endPoint.y() - this.startPoint.y();
+			
+			if(this.polar) {
+				// x is an angle: the line is an arc (or a spiral), the tips of the bars go around the outer one
+				float r = Math.max(Math.abs(this.startPoint.y()), Math.abs(this.endPoint.y())) + Math.abs(this.height) + Math.abs(this.minHeight);
+				r = Math.max(r, ADAPTIVE_MIN_RADIUS);
+				dx = dx / this.args.width * MathUtils.PI_2 * r;
+			}
+			
+			return (float) Math.sqrt(dx * dx + dy * dy);
+		}
+		
+		// Merges bars so there's no more than one per pixel, keeping the peak of the merged ones
+		private void reduceCount() {
+			// Alternate bars go to either side, merging them would move peaks to the wrong one
+			if(this.faceMode == 3) return;
+			
+			int lodCount = Math.max((int) Math.ceil(this.screenLength()), 2);
+			if(lodCount >= this.count) return;
+			
+			// In place: bar i always lands on a bar j <= i, and j only grows with i
+			float scale = (float) (lodCount - 1) / (this.count - 1);
+			int j = -1;
+			
+			for(int i = 0; i < this.count; i++) {
+				int nj = Math.round(i * scale);
+				float freqVal = this.amplitudes[i];
+				
+				if(nj != j) {
+					j = nj;
+					this.amplitudes[j] = freqVal;
+				} else if(freqVal > this.amplitudes[j]) {
+					this.amplitudes[j] = freqVal;
+				}
+			}
+			
+			this.count = lodCount;
 		}
 		
 		private void xyToPolar() {
@@ -167,10 +332,58 @@ public class AudioSpectrumVFX extends VideoEffect {
 			this.xy[1] = MathUtils.sinf(a) * r;
 		}
 		
+		private void updatePolarTable() {
+			// The angle only depends on the x position: the table can't be used if bars expand along x
+			this.polarTableValid = this.expandX == 0.0f && this.minExpandX == 0.0f;
+			if(!this.polarTableValid) return;
+			
+			if(
+				this.polarTableCount == this.count &&
+				this.polarTableStartX == this.startPoint.x() &&
+				this.polarTableEndX == this.endPoint.x() &&
+				this.polarTableWidth == this.args.width
+			) return;
+			
+			this.polarTableCount = this.count;
+			this.polarTableStartX = this.startPoint.x();
+			this.polarTableEndX = this.endPoint.x();
+			this.polarTableWidth = this.args.width;
+			
+			if(this.polarCos.length < this.count + 2) {
+				this.polarCos = new float[this.count + 2];
+				this.polarSin = new float[this.count + 2];
+			}
+			
+			for(int i = 0; i < this.count + 2; i++) {
+				float x;
+				
+				if(i == this.count) x = this.startPoint.x();
+				else if(i == this.count + 1) x = this.endPoint.x();
+				else x = MathUtils.lerp(this.startPoint.x(), this.endPoint.x(), (float) i / (this.count - 1));
+				
+				float a = x / this.args.width * MathUtils.PI_2 + MathUtils.HALF_PI;
+				this.polarCos[i] = MathUtils.cosf(a);
+				this.polarSin[i] = MathUtils.sinf(a);
+			}
+		}
+		
+		// i: bar index, or count for the start point and count + 1 for the end point
+		private void xyToPolar(int i) {
+			if(!this.polarTableValid) {
+				this.xyToPolar();
+				return;
+			}
+			
+			float r = this.xy[1];
+			
+			this.xy[0] = this.polarCos[i] * r;
+			this.xy[1] = this.polarSin[i] * r;
+		}
+		
 		private void traceFace(float expandX, float expandY, float minExpandX, float minExpandY, boolean alternate) {
 			this.xy[0] = this.startPoint.x();
 			this.xy[1] = -this.startPoint.y();
-			if(this.polar) this.xyToPolar();
+			if(this.polar) this.xyToPolar(this.count);
 			
 			if(this.zeroLast)
 				this.vg.moveTo(this.xy[0], this.xy[1]);
@@ -178,14 +391,12 @@ public class AudioSpectrumVFX extends VideoEffect {
 			for(int i = 0; i < this.count; i++) {
 				float p = (float) i / (this.count - 1);
 				
-				// [0..1] frequency amplitude
-				float freqVal = MathUtils.clamp(Math.max((MathUtils.getValue(this.audioData, MathUtils.lerp(this.minFreq, this.maxFreq, p) * this.audioData.length, true) - this.minDecibel), 0.0f) / (this.maxDecibel - this.minDecibel), 0.0f, 1.0f);
-				freqVal = MathUtils.powf(freqVal, this.exponent);
+				float freqVal = this.amplitudes[i];
 				
 				this.xy[0] = MathUtils.lerp(this.startPoint.x(), this.endPoint.x(), p) + freqVal * expandX + minExpandX;
 				this.xy[1] = -MathUtils.lerp(this.startPoint.y(), this.endPoint.y(), p) + freqVal * expandY + minExpandY;
 				
-				if(this.polar) this.xyToPolar();
+				if(this.polar) this.xyToPolar(i);
 				
 				if(this.zeroLast || i != 0) this.vg.lineTo(this.xy[0], this.xy[1]);
 				else this.vg.moveTo(this.xy[0], this.xy[1]);
@@ -201,22 +412,17 @@ public class AudioSpectrumVFX extends VideoEffect {
 			if(this.zeroLast) {
 				this.xy[0] = this.endPoint.x();
 				this.xy[1] = -this.endPoint.y();
-				if(this.polar) this.xyToPolar();
+				if(this.polar) this.xyToPolar(this.count + 1);
 				
 				this.vg.lineTo(this.xy[0], this.xy[1]);
 			}
 		}
 		
 		private void traceOutline() {
-			float dx = this.endPoint.x() - this.startPoint.x();
-			float dy = this.endPoint.y() - this.startPoint.y();
-			float distInv = (float) (1.0 / Math.sqrt(dx * dx + dy * dy));
-			float cosang = MathUtils.cosf(-this.angle);
-			float sinang = MathUtils.sinf(-this.angle);
-			float expandX = (cosang * dy + sinang * dx) * distInv * this.height;
-			float expandY = (sinang * dy - cosang * dx) * distInv * this.height;
-			float minExpandX = (cosang * dy + sinang * dx) * distInv * this.minHeight;
-			float minExpandY = (sinang * dy - cosang * dx) * distInv * this.minHeight;
+			float expandX = this.expandX;
+			float expandY = this.expandY;
+			float minExpandX = this.minExpandX;
+			float minExpandY = this.minExpandY;
 			
 			this.vg.beginPath();
 			
@@ -249,15 +455,10 @@ public class AudioSpectrumVFX extends VideoEffect {
 		}
 		
 		private void renderLines() {
-			float dx = this.endPoint.x() - this.startPoint.x();
-			float dy = this.endPoint.y() - this.startPoint.y();
-			float distInv = (float) (1.0 / Math.sqrt(dx * dx + dy * dy));
-			float cosang = MathUtils.cosf(-this.angle);
-			float sinang = MathUtils.sinf(-this.angle);
-			float expandX = (cosang * dy + sinang * dx) * distInv * this.height;
-			float expandY = (sinang * dy - cosang * dx) * distInv * this.height;
-			float minExpandX = (cosang * dy + sinang * dx) * distInv * this.minHeight;
-			float minExpandY = (sinang * dy - cosang * dx) * distInv * this.minHeight;
+			float expandX = this.expandX;
+			float expandY = this.expandY;
+			float minExpandX = this.minExpandX;
+			float minExpandY = this.minExpandY;
 			
 			boolean faceA = true;
 			boolean faceB = false;
@@ -281,9 +482,7 @@ public class AudioSpectrumVFX extends VideoEffect {
 			for(int i = 0; i < this.count; i++) {
 				float p = (float) i / (this.count - 1);
 				
-				// [0..1] frequency amplitude
-				float freqVal = MathUtils.clamp(Math.max((MathUtils.getValue(this.audioData, MathUtils.lerp(this.minFreq, this.maxFreq, p) * this.audioData.length, true) - this.minDecibel), 0.0f) / (this.maxDecibel - this.minDecibel), 0.0f, 1.0f);
-				freqVal = MathUtils.powf(freqVal, this.exponent);
+				float freqVal = this.amplitudes[i];
 				
 				float sx = MathUtils.lerp(this.startPoint.x(), this.endPoint.x(), p);
 				float sy = -MathUtils.lerp(this.startPoint.y(), this.endPoint.y(), p);
@@ -295,32 +494,32 @@ public class AudioSpectrumVFX extends VideoEffect {
 				if(faceA && faceB) {
 					this.xy[0] = xa;
 					this.xy[1] = ya;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.moveTo(this.xy[0], this.xy[1]);
 					
 					this.xy[0] = xb;
 					this.xy[1] = yb;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.lineTo(this.xy[0], this.xy[1]);
 				} else if(faceA) {
 					this.xy[0] = sx;
 					this.xy[1] = sy;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.moveTo(this.xy[0], this.xy[1]);
 					
 					this.xy[0] = xa;
 					this.xy[1] = ya;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.lineTo(this.xy[0], this.xy[1]);
 				} else if(faceB) {
 					this.xy[0] = sx;
 					this.xy[1] = sy;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.moveTo(this.xy[0], this.xy[1]);
 
 					this.xy[0] = xb;
 					this.xy[1] = yb;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.lineTo(this.xy[0], this.xy[1]);
 				}
 				
@@ -334,15 +533,10 @@ public class AudioSpectrumVFX extends VideoEffect {
 		}
 		
 		private void renderDots() {
-			float dx = this.endPoint.x() - this.startPoint.x();
-			float dy = this.endPoint.y() - this.startPoint.y();
-			float distInv = (float) (1.0 / Math.sqrt(dx * dx + dy * dy));
-			float cosang = MathUtils.cosf(-this.angle);
-			float sinang = MathUtils.sinf(-this.angle);
-			float expandX = (cosang * dy + sinang * dx) * distInv * this.height;
-			float expandY = (sinang * dy - cosang * dx) * distInv * this.height;
-			float minExpandX = (cosang * dy + sinang * dx) * distInv * this.minHeight;
-			float minExpandY = (sinang * dy - cosang * dx) * distInv * this.minHeight;
+			float expandX = this.expandX;
+			float expandY = this.expandY;
+			float minExpandX = this.minExpandX;
+			float minExpandY = this.minExpandY;
 			
 			boolean faceA = true;
 			boolean faceB = false;
@@ -366,9 +560,7 @@ public class AudioSpectrumVFX extends VideoEffect {
 			for(int i = 0; i < this.count; i++) {
 				float p = (float) i / (this.count - 1);
 				
-				// [0..1] frequency amplitude
-				float freqVal = MathUtils.clamp(Math.max((MathUtils.getValue(this.audioData, MathUtils.lerp(this.minFreq, this.maxFreq, p) * this.audioData.length, true) - this.minDecibel), 0.0f) / (this.maxDecibel - this.minDecibel), 0.0f, 1.0f);
-				freqVal = MathUtils.powf(freqVal, this.exponent);
+				float freqVal = this.amplitudes[i];
 				
 				float sx = MathUtils.lerp(this.startPoint.x(), this.endPoint.x(), p);
 				float sy = -MathUtils.lerp(this.startPoint.y(), this.endPoint.y(), p);
@@ -380,7 +572,7 @@ public class AudioSpectrumVFX extends VideoEffect {
 				if(faceA) {
 					this.xy[0] = xa;
 					this.xy[1] = ya;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.moveTo(this.xy[0], this.xy[1]);
 					this.vg.oval(this.xy[0], this.xy[1], this.size, this.size);
 				}
@@ -388,7 +580,7 @@ public class AudioSpectrumVFX extends VideoEffect {
 				if(faceB) {
 					this.xy[0] = xb;
 					this.xy[1] = yb;
-					if(this.polar) this.xyToPolar();
+					if(this.polar) this.xyToPolar(i);
 					this.vg.moveTo(this.xy[0], this.xy[1]);
 					this.vg.oval(this.xy[0], this.xy[1], this.size, this.size);
 				}
@@ -401,7 +593,141 @@ public class AudioSpectrumVFX extends VideoEffect {
 			this.vg.fill();
 		}
 		
+		private void renderVG(GL3 gl, int fbo, int rgba) {
+			this.vg.begin(gl, this.args.width, this.args.height);
+			this.vg.setLineWidth(this.size);
+			this.vg.setStrokeColor(rgba);
+			this.vg.setFillColor(rgba);
+			
+			switch(this.lineCaps) {
+				case 0: // BUTT
+					this.vg.setLineCaps(VGLineCap.BUTT);
+					break;
+				case 1: // ROUND
+					this.vg.setLineCaps(VGLineCap.ROUND);
+					break;
+				case 2: // SQUARE
+					this.vg.setLineCaps(VGLineCap.SQUARE);
+					break;
+			}
+			
+			switch(this.mode) {
+				case 0: // OUTLINE
+					this.renderOutline();
+					break;
+				case 2: // FILL
+					this.renderFill();
+					break;
+				case 1: // LINES
+					this.renderLines();
+					break;
+				case 3: // DOTS
+					this.renderDots();
+					break;
+			}
+			
+			this.vg.end(fbo);
+			
+			// GLVG binds its own programs, vertex arrays and textures
+			GLState.invalidate();
+		}
+		
+		private boolean canRenderInstanced() {
+			return this.instanced && (this.mode == 1 || this.mode == 3) && this.count <= INSTANCED_MAX_COUNT;
+		}
+		
+		/*
+		 * Porter-Duff operators that fixed-function blending can do exactly on
+		 * non-premultiplied colors, even when the bars overlap each other:
+		 * srcAtop: co = as * cs + (1 - as) * cb, ao = ab
+		 * dstOut:  co = cb, ao = ab * (1 - as)
+		 * Only with an opaque color though: overlapping coverages then add up like in the offscreen pass,
+		 * 1 - (1 - c1) * (1 - c2), where a translucent color would be applied once per bar instead of once overall.
+		 * The others either need a division by the output alpha (srcOver, dstOver, add, xor)
+		 * or give a different result when two fragments of the same layer overlap (srcIn, dstIn, srcOut, dstAtop),
+		 * so they go through the offscreen pass.
+		 */
+		private boolean setupDirectBlending(GL3 gl, boolean apply) {
+			if(this.color.getAlphaf() < 1.0f) return false;
+			
+			switch(this.blendingMode) {
+				case 5: // dstOut
+					if(apply) gl.glBlendFuncSeparate(GL_ZERO, GL_ONE, GL_ZERO, GL_ONE_MINUS_SRC_ALPHA);
+					return true;
+				case 6: // srcAtop
+					if(apply) gl.glBlendFuncSeparate(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA, GL_ZERO, GL_ONE);
+					return true;
+				default:
+					return false;
+			}
+		}
+		
+		// Single draw call for LINES and DOTS: one quad per bar (per face for dots), shaped in the fragment shader
+		private void renderInstanced(GL3 gl, int fbo, int target) {
+			if(this.instancedAmplitudes.capacity() < this.count)
+				this.instancedAmplitudes = Buffers.newDirectFloatBuffer(this.count);
+			
+			this.instancedAmplitudes.clear();
+			this.instancedAmplitudes.put(this.amplitudes, 0, this.count);
+			this.instancedAmplitudes.flip();
+			
+			gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, this.gl_inst_amplitudes_buf);
+			gl.glBufferData(GL3.GL_TEXTURE_BUFFER, (long) this.count * Buffers.SIZEOF_FLOAT, this.instancedAmplitudes, GL3.GL_STREAM_DRAW);
+			gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, 0);
+			
+			gl.glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+			if(target != TARGET_DIRECT) {
+				gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+				gl.glClear(GL_COLOR_BUFFER_BIT);
+			}
+			
+			GLState.useProgram(gl, this.gl_prog_inst);
+			gl.glActiveTexture(GL_TEXTURE0);
+			gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, this.gl_inst_amplitudes_tex);
+			GLState.invalidateTextures();
+			GLState.uniform1i(gl, this.gl_prog_inst_amplitudes, 0);
+			
+			GLState.uniform4f(gl, this.gl_prog_inst_startEnd, this.startPoint.x(), -this.startPoint.y(), this.endPoint.x(), -this.endPoint.y());
+			GLState.uniform4f(gl, this.gl_prog_inst_expand, this.expandX, this.expandY, this.minExpandX, this.minExpandY);
+			GLState.uniform2f(gl, this.gl_prog_inst_viewSize, this.args.width, this.args.height);
+			GLState.uniform1f(gl, this.gl_prog_inst_size, this.size);
+			GLState.uniform1i(gl, this.gl_prog_inst_count, this.count);
+			GLState.uniform1i(gl, this.gl_prog_inst_mode, this.mode == 3 ? 1 : 0);
+			GLState.uniform1i(gl, this.gl_prog_inst_faceMode, this.faceMode);
+			GLState.uniform1i(gl, this.gl_prog_inst_lineCaps, this.lineCaps);
+			GLState.uniform1i(gl, this.gl_prog_inst_polar, this.polar ? 1 : 0);
+			if(target == TARGET_COVERAGE) GLState.uniform4f(gl, this.gl_prog_inst_color, 1.0f, 1.0f, 1.0f, 1.0f);
+			else GLState.uniform4f(gl, this.gl_prog_inst_color, this.color.getRedf(), this.color.getGreenf(), this.color.getBluef(), this.color.getAlphaf());
+			GLState.uniform1i(gl, this.gl_prog_inst_fragMode, this.mode == 3 ? 1 : 0);
+			GLState.uniform1i(gl, this.gl_prog_inst_fragLineCaps, this.lineCaps);
+			
+			gl.glEnable(GL_BLEND);
+			
+			switch(target) {
+				case TARGET_OUTPUT:
+					// Everything has the same color: keep it as is and only accumulate the coverage in alpha
+					gl.glBlendFuncSeparate(GL_ONE, GL_ZERO, GL_ONE, GL_ONE_MINUS_SRC_ALPHA);
+					break;
+				case TARGET_COVERAGE:
+					// Accumulate the coverage in the red channel
+					gl.glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+					break;
+				case TARGET_DIRECT:
+					this.setupDirectBlending(gl, true);
+					break;
+			}
+			
+			int instances = this.mode == 3 && this.faceMode == 2 ? this.count * 2 : this.count;
+			GLState.bindVertexArray(gl, this.gl_inst_vao);
+			gl.glDrawArraysInstanced(GL_TRIANGLE_STRIP, 0, 4, instances);
+			
+			gl.glDisable(GL_BLEND);
+			gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, 0);
+		}
+		
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
 			this.args = args;
 			this.color = ((RGBA32) args.parameters.get(PNAME_color));
 			this.mode = ((int) args.parameters.get(PNAME_mode));
@@ -418,12 +744,16 @@ public class AudioSpectrumVFX extends VideoEffect {
 			this.duration = ((float) args.parameters.get(PNAME_duration));
 			this.minDecibel = ((float) args.parameters.get(PNAME_minDecibel));
 			this.maxDecibel = ((float) args.parameters.get(PNAME_maxDecibel));
-			this.minFreq = ((float) args.parameters.get(PNAME_minFreq)) / UrmusicModel.getAudioRenderer().getSampleRate();
-			this.maxFreq = ((float) args.parameters.get(PNAME_maxFreq)) / UrmusicModel.getAudioRenderer().getSampleRate();
+			this.minFreq = ((float) args.parameters.get(PNAME_minFreq));
+			this.maxFreq = ((float) args.parameters.get(PNAME_maxFreq));
 			this.minHeight = ((float) args.parameters.get(PNAME_minHeight));
 			this.height = ((float) args.parameters.get(PNAME_height));
 			this.exponent = ((float) args.parameters.get(PNAME_exponent));
 			this.blendingMode = ((int) args.parameters.get(PNAME_blendingMode));
+			this.instanced = args.parameters.get(PNAME_instanced) == BoolValue.TRUE;
+			this.aggregation = ((int) args.parameters.get(PNAME_aggregation));
+			this.logarithmic = ((int) args.parameters.get(PNAME_bandLayout)) == 1;
+			this.adaptiveCount = args.parameters.get(PNAME_adaptiveCount) == BoolValue.TRUE;
 			
 			{ // In a block so "min" and "max" aren't annoying later if we need to name vars like that
 				float min = Math.min(this.minDecibel, this.maxDecibel);
@@ -433,88 +763,74 @@ public class AudioSpectrumVFX extends VideoEffect {
 				this.maxDecibel = max;
 			}
 			
-			UrmusicModel.getAudioRenderer().getFreqData(args.time + this.millisOffset / 1000.0f, this.duration / 1000.0f, this.audioData);
+			this.bins.update(this.count, this.minFreq, this.maxFreq, this.logarithmic, AudioSource.get().getSampleRate(), AudioRenderer.FFT_SIZE);
+			this.audioData = FreqDataCache.get(args.time, args.time + this.millisOffset / 1000.0f, this.duration / 1000.0f);
+			this.computeAmplitudes();
+			if(this.adaptiveCount) this.reduceCount();
+			this.computeExpand();
+			if(this.polar) this.updatePolarTable();
 
-			if(this.dest_width != args.width || this.dest_height != args.height) {
-				gl.glBindTexture(GL_TEXTURE_2D, this.gl_dest_fbo_tex);
-				gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, args.width, args.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
-				gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-				gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-				gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
-				gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
-				
-				if(this.dest_width == -1 || this.dest_height == -1) {
-					gl.glBindFramebuffer(GL_FRAMEBUFFER, this.gl_dest_fbo);
-					gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, this.gl_dest_fbo_tex, 0);
-				}
+			// Render directly for "COPY" mode
+			if(this.blendingMode == 8) {
+				if(this.canRenderInstanced()) this.renderInstanced(gl, args.fboOutput, TARGET_OUTPUT);
+				else this.renderVG(gl, args.fboOutput, this.color.getRGBA());
+			} else if(this.canRenderInstanced() && this.setupDirectBlending(gl, false)) {
+				// Copy the input and compose the bars right on it, no need for the second pass
+				gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, this.gl_copy_fbo);
+				gl.glFramebufferTexture2D(GL3.GL_READ_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, args.texInput, 0);
+				gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, args.fboOutput);
+				gl.glBlitFramebuffer(0, 0, args.width, args.height, 0, 0, args.width, args.height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
 				
-				this.dest_width = args.width;
-				this.dest_height = args.height;
+				this.renderInstanced(gl, args.fboOutput, TARGET_DIRECT);
+			} else {
+				RenderTargetPool.Target dest = RenderTargetPool.acquire(gl, args.width, args.height, GL3.GL_R8);
 				
-				gl.glBindTexture(GL_TEXTURE_2D, 0);
-			}
-			
-			this.vg.begin(gl, args.width, args.height);
-			this.vg.setLineWidth(this.size);
-			this.vg.setStrokeColor(this.color.getRGBA());
-			this.vg.setFillColor(this.color.getRGBA());
-			
-			switch(this.lineCaps) {
-				case 0: // BUTT
-					this.vg.setLineCaps(VGLineCap.BUTT);
-					break;
-				case 1: // ROUND
-					this.vg.setLineCaps(VGLineCap.ROUND);
-					break;
-				case 2: // SQUARE
-					this.vg.setLineCaps(VGLineCap.SQUARE);
-					break;
-			}
-			
-			switch(this.mode) {
-				case 0: // OUTLINE
-					this.renderOutline();
-					break;
-				case 2: // FILL
-					this.renderFill();
-					break;
-				case 1: // LINES
-					this.renderLines();
-					break;
-				case 3: // DOTS
-					this.renderDots();
-					break;
-			}
-			
-			// Render directly for "COPY" mode
-			if(this.blendingMode == 8) this.vg.end(args.fboOutput);
-			else {
-				this.vg.end(this.gl_dest_fbo);
+				// Only the coverage is rendered offscreen, the color is applied when composing
+				if(this.canRenderInstanced()) this.renderInstanced(gl, dest.getFramebuffer(), TARGET_COVERAGE);
+				else this.renderVG(gl, dest.getFramebuffer(), 0xFFFFFFFF);
 				
 				gl.glBindFramebuffer(GL_FRAMEBUFFER, args.fboOutput);
-				gl.glUseProgram(this.gl_prog_blend);
-				this.glu.uniformTexture(gl, this.gl_prog_blend_inputTex, this.gl_dest_fbo_tex, 0);
-				this.glu.uniformTexture(gl, this.gl_prog_blend_destTex, args.texInput, 1);
-				gl.glUniform1i(this.gl_prog_blend_blendingMode, this.blendingMode);
-				gl.glBindVertexArray(this.gl_vao_fullQuad);
+				int[] loc = this.gl_prog_blend.use(gl, this.blendingMode);
+				GLState.uniformTexture(gl, loc[LOC_blend_inputTex], dest.getTexture(), 0);
+				GLState.uniformTexture(gl, loc[LOC_blend_destTex], args.texInput, 1);
+				GLState.uniform4f(gl, loc[LOC_blend_color], this.color.getRedf(), this.color.getGreenf(), this.color.getBluef(), this.color.getAlphaf());
+				GLState.bindVertexArray(gl, this.gl_vao_fullQuad);
 				gl.glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+				
+				RenderTargetPool.release(gl, dest);
 			}
 		}
 		
 		public void disposeVideo(GL3 gl) {
+			this.bufInstanced.put(0, this.gl_inst_vao);
+			gl.glDeleteVertexArrays(1, this.bufInstanced);
+			this.bufInstanced.put(0, this.gl_inst_amplitudes_buf);
+			gl.glDeleteBuffers(1, this.bufInstanced);
+			
+			this.gl_prog_blend.dispose(gl);
+			GLState.deleteProgram(gl, this.gl_prog_inst);
+			
 			this.vg.dispose(gl);
 			this.glu.dispose(gl);
 		}
 	}
 	
 	public void globalVideoSetup(GL3 gl) {
+		RenderTargetPool.retain();
 	}
 
 	public void globalVideoDispose(GL3 gl) {
+		RenderTargetPool.dispose(gl);
 	}
 
 	public VideoEffectInstance instance() {
-		return new AudioSpectrumVFXInstance();
+		AudioSpectrumVFXInstance inst = new AudioSpectrumVFXInstance();
+		
+		// The project is loading, get the sources ready for setupVideo
+		ProgramLoader.prefetch("fx/audio_spectrum/", "instanced_vert.vs", "instanced_frag.fs");
+		inst.gl_prog_blend.prefetch();
+		
+		return inst;
 	}
 
 	public void effectMain() {
@@ -47,8 +47,19 @@ public class CircleMaskVFX extends VideoEffect {
 	
 	private NGLUtils glu = new NGLUtils("circle mask global", CircleMaskVFX.class.getClassLoader());
 	
-	private int prog, quadVAO;
-	private int loc_inputTex, loc_size, loc_color, loc_originInOutRadius, loc_inOutFade, loc_blending, loc_invert;
+	// One program per blending mode
+	private static final int LOC_inputTex = 0;
+	private static final int LOC_size = 1;
+	private static final int LOC_color = 2;
+	private static final int LOC_originInOutRadius = 3;
+	private static final int LOC_inOutFade = 4;
+	private static final int LOC_invert = 5;
+	private final ProgramVariants progs = new ProgramVariants("fx/circle_mask/", "main_vert.vs", "main_frag.fs", ProgramVariants.PD_OP, ProgramVariants.PD_OP_COUNT,
+		"inputTex", "colorSize", "params.color", "params.originInOutRadius", "params.inOutFade", "params.invert"
+	);
+	
+	private int quadVAO;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
 	
 	public class CircleMaskVFXInstance extends VideoEffectInstance {
 		public void setupParameters() {
@@ -75,10 +86,12 @@ public class CircleMaskVFX extends VideoEffect {
 		}
 		
 		public void setupVideo(GL3 gl) {
-			
+			CircleMaskVFX.this.video.setup(gl);
 		}
 		
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
 			// Retrieve params
 			Vector2fc position = (Vector2fc) args.parameters.get(PNAME_position);
 			RGBA32 color = (RGBA32) args.parameters.get(PNAME_color);
@@ -89,25 +102,24 @@ public class CircleMaskVFX extends VideoEffect {
 			int blending = (int) args.parameters.get(PNAME_blendingMode);
 			boolean invert = args.parameters.get(PNAME_invert) == BoolValue.TRUE;
 			
-			gl.glUseProgram(CircleMaskVFX.this.prog);
-			CircleMaskVFX.this.glu.uniformTexture(gl, CircleMaskVFX.this.loc_inputTex, args.texInput, 0);
+			int[] loc = CircleMaskVFX.this.progs.use(gl, blending);
+			GLState.uniformTexture(gl, loc[LOC_inputTex], args.texInput, 0);
 			
-			gl.glUniform2f(CircleMaskVFX.this.loc_size, args.width, args.height);
-			gl.glUniform4f(CircleMaskVFX.this.loc_color, color.getRedf(), color.getGreenf(), color.getBluef(), color.getAlphaf());
-			gl.glUniform4f(CircleMaskVFX.this.loc_originInOutRadius,
+			GLState.uniform2f(gl, loc[LOC_size], args.width, args.height);
+			GLState.uniform4f(gl, loc[LOC_color], color.getRedf(), color.getGreenf(), color.getBluef(), color.getAlphaf());
+			GLState.uniform4f(gl, loc[LOC_originInOutRadius],
 					position.x(),
 					-position.y(),
 					innerRadius,
 					outerRadius
 			);
-			gl.glUniform2f(CircleMaskVFX.this.loc_inOutFade,
+			GLState.uniform2f(gl, loc[LOC_inOutFade],
 					innerFade,
 					outerFade
 			);
-			gl.glUniform1i(CircleMaskVFX.this.loc_blending, blending);
-			gl.glUniform1i(CircleMaskVFX.this.loc_invert, invert ? 1 : 0);
+			GLState.uniform1i(gl, loc[LOC_invert], invert ? 1 : 0);
 			
-			gl.glBindVertexArray(CircleMaskVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, CircleMaskVFX.this.quadVAO);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 		
@@ -116,25 +128,27 @@ public class CircleMaskVFX extends VideoEffect {
 	}
 	
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = this.glu.createProgram(gl, "fx/circle_mask/", "main_vert.vs", "main_frag.fs");
-		
-		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
-		this.loc_size = gl.glGetUniformLocation(this.prog, "colorSize");
-		
-		this.loc_color = gl.glGetUniformLocation(this.prog, "params.color");
-		this.loc_originInOutRadius = gl.glGetUniformLocation(this.prog, "params.originInOutRadius");
-		this.loc_inOutFade = gl.glGetUniformLocation(this.prog, "params.inOutFade");
-		this.loc_blending = gl.glGetUniformLocation(this.prog, "params.blending");
-		this.loc_invert = gl.glGetUniformLocation(this.prog, "params.invert");
-		
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		// The programs themselves are built by progs, for the blending modes actually used
 		this.quadVAO = this.glu.createFullQuadVAO(gl);
 	}
 
+	private void disposeGlobalVideo(GL3 gl) {
+		this.progs.dispose(gl);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
 		this.glu.dispose(gl);
 	}
 
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		this.progs.prefetch();
+		
 		return new CircleMaskVFXInstance();
 	}
 
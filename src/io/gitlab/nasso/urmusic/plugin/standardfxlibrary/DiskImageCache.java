@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decoded pixels saved to disk, so reopening a project doesn't decode every image again.
+ * Files are memory-mapped when read back. Keyed by source path, modification time, file size and decoded size.
+ * Files go in the "images" folder of the plugin's cache directory, its size is capped by
+ * "urmstdfx.diskCacheSize" (in MB, 1024 by default, 0 disables the cache). The least recently used files go first.
+ */
+final class DiskImageCache {
+	private static final int MAGIC = 0x55524D50; // "URMP"
+	private static final int VERSION = 1;
+	private static final String EXTENSION = ".px";
+	
+	private static final long CAPACITY = Long.getLong("urmstdfx.diskCacheSize", 1024) * 1024 * 1024;
+	private static final Path DIRECTORY = Main.getCacheDirectory().resolve("images");
+	
+	// Tiny images decode faster than a file can be opened
+	private static final int MIN_BYTES = 64 * 1024;
+	
+	// Writes never compete with the decoders: one at a time, in the background
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "urmstdfx image cache writer");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+	
+	private static volatile boolean enabled = CAPACITY > 0;
+	private static long totalBytes = -1; // -1: directory not scanned yet
+	
+	private DiskImageCache() {
+	}
+	
+	// Any thread. null if there's no valid entry.
+	public static ImagePixels load(Path source, int width, int height) {
+		String key = keyOf(source, width, height);
+		Path file = fileFor(key);
+		if(file == null || !Files.isRegularFile(file)) return null;
+		
+		try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+			
+			ByteBuffer header = ByteBuffer.allocate(headerSize(keyBytes)).order(ByteOrder.BIG_ENDIAN);
+			while(header.hasRemaining() && ch.read(header) >= 0);
+			header.flip();
+			
+			if(header.remaining() != headerSize(keyBytes)
+				|| header.getInt() != MAGIC
+				|| header.getInt() != VERSION
+				|| header.getInt() != width
+				|| header.getInt() != height)
+				return null;
+			
+			int sourceWidth = header.getInt();
+			int sourceHeight = header.getInt();
+			
+			// Hash collisions are unlikely, but a wrong image would be hard to track down
+			byte[] storedKey = new byte[header.getInt()];
+			if(storedKey.length != keyBytes.length) return null;
+			header.get(storedKey);
+			if(!key.equals(new String(storedKey, StandardCharsets.UTF_8))) return null;
+			
+			long pixelBytes = (long) width * height * 4;
+			if(ch.size() != header.limit() + pixelBytes) return null;
+			
+			// The mapping stays valid after the channel is closed
+			MappedByteBuffer data = ch.map(FileChannel.MapMode.READ_ONLY, header.limit(), pixelBytes);
+			
+			// Faults the pages in here rather than on the GL thread during the upload
+			data.load();
+			
+			touch(file);
+			return ImagePixels.wrap(width, height, sourceWidth, sourceHeight, data);
+		} catch(IOException e) {
+			return null;
+		}
+	}
+	
+	// Any thread. Returns right away, the file is written by the writer thread.
+	public static void storeLater(Path source, ImagePixels px) {
+		if(!enabled || px.getByteCount() < MIN_BYTES) return;
+		
+		writer.execute(() -> store(source, px));
+	}
+	
+	// Failures are ignored, the image will just be decoded again next time
+	private static void store(Path source, ImagePixels px) {
+		if(px.getByteCount() < MIN_BYTES) return;
+		
+		int width = px.getWidth();
+		int height = px.getHeight();
+		
+		String key = keyOf(source, width, height);
+		Path file = fileFor(key);
+		if(file == null) return;
+		
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(headerSize(keyBytes)).order(ByteOrder.BIG_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(width);
+		header.putInt(height);
+		header.putInt(px.getSourceWidth());
+		header.putInt(px.getSourceHeight());
+		header.putInt(keyBytes.length);
+		header.put(keyBytes);
+		header.flip();
+		
+		long size = header.limit() + (long) px.getByteCount();
+		
+		Path tmp = null;
+		try {
+			Files.createDirectories(DIRECTORY);
+			
+			// Written next to it then moved, so a crash never leaves a truncated entry behind
+			tmp = Files.createTempFile(DIRECTORY, "store", ".tmp");
+			try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ByteBuffer data = px.getData();
+				while(header.hasRemaining()) ch.write(header);
+				while(data.hasRemaining()) ch.write(data);
+			}
+			
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		} catch(IOException e) {
+			return;
+		} finally {
+			if(tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch(IOException e) {
+				}
+			}
+		}
+		
+		added(size);
+	}
+	
+	private static synchronized void added(long size) {
+		if(totalBytes < 0) totalBytes = scan();
+		else totalBytes += size;
+		
+		if(totalBytes > CAPACITY) cleanUp();
+	}
+	
+	private static long scan() {
+		long total = 0;
+		
+		for(Path p : list())
+			total += sizeOf(p);
+		
+		return total;
+	}
+	
+	// Deletes the least recently used files until it's back to 3/4 of the capacity, so this doesn't run on every store
+	private static void cleanUp() {
+		List<Path> files = list();
+		Map<Path, Long> times = new HashMap<>();
+		
+		long total = 0;
+		for(Path p : files) {
+			total += sizeOf(p);
+			
+			try {
+				times.put(p, Files.getLastModifiedTime(p).toMillis());
+			} catch(IOException e) {
+				times.put(p, 0L);
+			}
+		}
+		
+		files.sort((a, b) -> Long.compare(times.get(a), times.get(b)));
+		
+		long target = CAPACITY / 4 * 3;
+		for(int i = 0; i < files.size() && total > target; i++) {
+			Path p = files.get(i);
+			long size = sizeOf(p);
+			
+			try {
+				// Can fail on some systems while the file is still mapped, it'll be deleted on a later clean up
+				Files.delete(p);
+				total -= size;
+			} catch(IOException e) {
+			}
+		}
+		
+		totalBytes = total;
+	}
+	
+	private static List<Path> list() {
+		List<Path> files = new ArrayList<>();
+		
+		try(DirectoryStream<Path> dir = Files.newDirectoryStream(DIRECTORY, "*" + EXTENSION)) {
+			for(Path p : dir) files.add(p);
+		} catch(IOException e) {
+		}
+		
+		return files;
+	}
+	
+	private static long sizeOf(Path p) {
+		try {
+			return Files.size(p);
+		} catch(IOException e) {
+			return 0;
+		}
+	}
+	
+	// The modification time of the cache file is used as the last access time
+	private static void touch(Path file) {
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch(IOException e) {
+		}
+	}
+	
+	private static int headerSize(byte[] key) {
+		return 7 * 4 + key.length;
+	}
+	
+	private static String keyOf(Path source, int width, int height) {
+		long lastModified, size;
+		
+		try {
+			lastModified = Files.getLastModifiedTime(source).toMillis();
+			size = Files.size(source);
+		} catch(IOException e) {
+			return null;
+		}
+		
+		return source.toAbsolutePath().toString() + "|" + lastModified + "|" + size + "|" + width + "x" + height;
+	}
+	
+	private static Path fileFor(String key) {
+		if(!enabled || key == null) return null;
+		
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			
+			StringBuilder name = new StringBuilder(hash.length * 2 + EXTENSION.length());
+			for(byte b : hash) name.append(String.format("%02x", b & 0xFF));
+			
+			return DIRECTORY.resolve(name.append(EXTENSION).toString());
+		} catch(NoSuchAlgorithmException e) {
+			enabled = false;
+			return null;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import io.gitlab.nasso.urmusic.model.renderer.audio.AudioRenderer;
+
+/**
+ * Frequency data shared by every effect of the plugin.
+ * Layers asking for the same frame, time, duration and sample rate only cost one FFT.
+ * An entry's array is never written again once handed out: frames rendered at the same time by different threads
+ * (e.g. preview and export) get entries of their own instead of overwriting each other's.
+ */
+final class FreqDataCache {
+	private static final int MAX_ENTRIES = 16;
+	
+	private static class Entry {
+		private final float frameTime;
+		private final float time;
+		private final float duration;
+		private final float sampleRate;
+		
+		private final float[] data = new float[AudioRenderer.FFT_SIZE];
+		
+		private Entry(float frameTime, float time, float duration, float sampleRate) {
+			this.frameTime = frameTime;
+			this.time = time;
+			this.duration = duration;
+			this.sampleRate = sampleRate;
+		}
+	}
+	
+	// Oldest first to go
+	private static final Entry[] entries = new Entry[MAX_ENTRIES];
+	private static int entryCount = 0;
+	private static int nextEvicted = 0;
+	
+	private static long hits = 0;
+	private static long misses = 0;
+	
+	private FreqDataCache() {
+	}
+	
+	// The returned array is shared: callers must NOT modify it. It doesn't change afterwards.
+	public static synchronized float[] get(float frameTime, float time, float duration) {
+		AudioSource audio = AudioSource.get();
+		float sampleRate = audio.getSampleRate();
+		
+		for(int i = 0; i < entryCount; i++) {
+			Entry e = entries[i];
+			
+			if(e.frameTime == frameTime && e.time == time && e.duration == duration && e.sampleRate == sampleRate) {
+				hits++;
+				return e.data;
+			}
+		}
+		
+		misses++;
+		
+		// A new array every time: the evicted one may still be read
+		Entry e = new Entry(frameTime, time, duration, sampleRate);
+		audio.getFreqData(time, duration, e.data);
+		
+		if(entryCount < MAX_ENTRIES) {
+			entries[entryCount++] = e;
+		} else {
+			entries[nextEvicted] = e;
+			nextEvicted = (nextEvicted + 1) % MAX_ENTRIES;
+		}
+		
+		return e.data;
+	}
+	
+	public static synchronized long getHits() {
+		return hits;
+	}
+	
+	public static synchronized long getMisses() {
+		return misses;
+	}
+	
+	public static synchronized void clear() {
+		for(int i = 0; i < entryCount; i++)
+			entries[i] = null;
+		
+		entryCount = 0;
+		nextEvicted = 0;
+	}
+}
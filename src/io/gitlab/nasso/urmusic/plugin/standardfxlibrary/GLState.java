@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joml.Matrix4f;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Skips GL calls that wouldn't change anything.
+ * Uniform values belong to the program, so they're remembered across frames. For that to hold, the uniforms of a
+ * program used through this class must only ever be set through it (no raw glUniform* call), and the program must be
+ * deleted with deleteProgram: the driver reuses the names of deleted programs.
+ * Bindings are shared with the core and GLVG, so they're only trusted between begin() and the next
+ * time other code may have touched them: call invalidate() after such code, invalidateTextures() after binding or
+ * deleting a texture directly. GL thread only.
+ */
+final class GLState {
+	private static final int UNITS = 16;
+	
+	// Last values by location (raw int bits, so 0.0 and -0.0 aren't confused), by program
+	private static final Map<Integer, Map<Integer, int[]>> uniforms = new HashMap<>();
+	private static Map<Integer, int[]> boundUniforms = null;
+	
+	// -1: unknown
+	private static int program = -1;
+	private static int vertexArray = -1;
+	private static int activeUnit = -1;
+	private static final int[] textures = new int[UNITS];
+	
+	private static int[] tmpValues = new int[16]; // grows with the biggest array uniform
+	private static final float[] tmpMatrix = new float[16];
+	
+	private static long issuedCalls = 0;
+	private static long skippedCalls = 0;
+	
+	static {
+		Arrays.fill(textures, -1);
+	}
+	
+	private GLState() {
+	}
+	
+	// At the start of each applyVideo: the state may have been changed since last time
+	public static void begin() {
+		invalidate();
+	}
+	
+	public static void invalidate() {
+		program = -1;
+		boundUniforms = null;
+		vertexArray = -1;
+		invalidateTextures();
+	}
+	
+	public static void invalidateTextures() {
+		activeUnit = -1;
+		Arrays.fill(textures, -1);
+	}
+	
+	public static void useProgram(GL3 gl, int prog) {
+		if(prog == program) {
+			skippedCalls++;
+			return;
+		}
+		
+		gl.glUseProgram(prog);
+		issuedCalls++;
+		
+		program = prog;
+		boundUniforms = prog == 0 ? null : uniforms.computeIfAbsent(prog, k -> new HashMap<>());
+	}
+	
+	// Forgets its uniforms too, a new program may get the same name
+	public static void deleteProgram(GL3 gl, int prog) {
+		if(prog == 0) return;
+		
+		gl.glDeleteProgram(prog);
+		uniforms.remove(prog);
+		
+		if(prog == program) {
+			program = -1;
+			boundUniforms = null;
+		}
+	}
+	
+	public static void bindVertexArray(GL3 gl, int vao) {
+		if(vao == vertexArray) {
+			skippedCalls++;
+			return;
+		}
+		
+		gl.glBindVertexArray(vao);
+		issuedCalls++;
+		
+		vertexArray = vao;
+	}
+	
+	// Like NGLUtils.uniformTexture: binds the 2D texture to the unit and points the sampler to it
+	public static void uniformTexture(GL3 gl, int loc, int tex, int unit) {
+		if(unit < UNITS && textures[unit] == tex) {
+			skippedCalls++;
+		} else {
+			if(unit != activeUnit) {
+				gl.glActiveTexture(GL.GL_TEXTURE0 + unit);
+				issuedCalls++;
+				
+				activeUnit = unit;
+			}
+			
+			gl.glBindTexture(GL.GL_TEXTURE_2D, tex);
+			issuedCalls++;
+			
+			if(unit < UNITS) textures[unit] = tex;
+		}
+		
+		uniform1i(gl, loc, unit);
+	}
+	
+	public static void uniform1i(GL3 gl, int loc, int x) {
+		tmpValues[0] = x;
+		if(changed(loc, 1)) gl.glUniform1i(loc, x);
+	}
+	
+	public static void uniform1f(GL3 gl, int loc, float x) {
+		tmpValues[0] = Float.floatToRawIntBits(x);
+		if(changed(loc, 1)) gl.glUniform1f(loc, x);
+	}
+	
+	public static void uniform2f(GL3 gl, int loc, float x, float y) {
+		tmpValues[0] = Float.floatToRawIntBits(x);
+		tmpValues[1] = Float.floatToRawIntBits(y);
+		if(changed(loc, 2)) gl.glUniform2f(loc, x, y);
+	}
+	
+	public static void uniform4f(GL3 gl, int loc, float x, float y, float z, float w) {
+		tmpValues[0] = Float.floatToRawIntBits(x);
+		tmpValues[1] = Float.floatToRawIntBits(y);
+		tmpValues[2] = Float.floatToRawIntBits(z);
+		tmpValues[3] = Float.floatToRawIntBits(w);
+		if(changed(loc, 4)) gl.glUniform4f(loc, x, y, z, w);
+	}
+	
+	// count vec4 from v
+	public static void uniform4fv(GL3 gl, int loc, int count, float[] v) {
+		int n = count * 4;
+		if(tmpValues.length < n) tmpValues = new int[n];
+		
+		for(int i = 0; i < n; i++)
+			tmpValues[i] = Float.floatToRawIntBits(v[i]);
+		
+		if(changed(loc, n)) gl.glUniform4fv(loc, count, v, 0);
+	}
+	
+	public static void uniformMatrix(GL3 gl, int loc, Matrix4f m) {
+		m.get(tmpMatrix);
+		for(int i = 0; i < 16; i++)
+			tmpValues[i] = Float.floatToRawIntBits(tmpMatrix[i]);
+		
+		if(changed(loc, 16)) gl.glUniformMatrix4fv(loc, 1, false, tmpMatrix, 0);
+	}
+	
+	// Compares with the first n tmpValues, and remembers them. Always true if the bound program isn't known.
+	private static boolean changed(int loc, int n) {
+		if(loc < 0) return false;
+		
+		if(boundUniforms != null) {
+			int[] last = boundUniforms.get(loc);
+			
+			if(last != null && last.length == n && equals(last, tmpValues, n)) {
+				skippedCalls++;
+				return false;
+			}
+			
+			if(last != null && last.length == n) System.arraycopy(tmpValues, 0, last, 0, n);
+			else boundUniforms.put(loc, Arrays.copyOf(tmpValues, n));
+		}
+		
+		issuedCalls++;
+		return true;
+	}
+	
+	private static boolean equals(int[] a, int[] b, int n) {
+		for(int i = 0; i < n; i++) {
+			if(a[i] != b[i]) return false;
+		}
+		
+		return true;
+	}
+	
+	// Calls made through this class that reached the driver, and the ones that were skipped
+	public static long getIssuedCalls() {
+		return issuedCalls;
+	}
+	
+	public static long getSkippedCalls() {
+		return skippedCalls;
+	}
+	
+	public static void resetCounters() {
+		issuedCalls = 0;
+		skippedCalls = 0;
+	}
+}
@@ -21,14 +21,13 @@ package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
 
 import static com.jogamp.opengl.GL.*;
 
-import java.nio.IntBuffer;
-
-import com.jogamp.common.nio.Buffers;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
+import io.gitlab.nasso.urmusic.common.BoolValue;
 import io.gitlab.nasso.urmusic.model.project.VideoEffect;
 import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+import io.gitlab.nasso.urmusic.model.project.param.BooleanParam;
 import io.gitlab.nasso.urmusic.model.project.param.FloatParam;
 import io.gitlab.nasso.urmusic.model.project.param.OptionParam;
 import io.gitlab.nasso.urmusic.model.renderer.video.NGLUtils;
@@ -38,26 +37,37 @@ public class GaussianBlurVFX extends VideoEffect {
 	private static final int POPTVAL_HORIZONTAL = 1;
 	private static final int POPTVAL_VERTICAL = 2;
 	
+	private static final int POPTVAL_EXACT = 0;
+	private static final int POPTVAL_FAST = 1;
+	
 	private static final String PNAME_direction = "direction";
 	private static final String PNAME_radius = "radius";
+	private static final String PNAME_quality = "quality";
+	private static final String PNAME_cacheOutput = "cacheOutput";
+	
+	// Fast mode: below this radius the exact blur is cheap enough (and looks better)
+	private static final float FAST_MIN_RADIUS = 16.0f;
+	// Fast mode: halve the resolution until the remaining radius is about this small
+	private static final float FAST_COARSE_RADIUS = 4.0f;
+	private static final int FAST_MAX_LEVELS = 6;
 	
 	private static NGLUtils glu = new NGLUtils("gaussian blur global", GaussianBlurVFX.class.getClassLoader());
 
 	private int prog, quadVAO;
-	private int loc_sigma_radius_offsetScale, loc_inputTex;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
+	private int loc_center_taps_offsetScale, loc_taps, loc_inputTex;
+	
+	private int prog_down, prog_up;
+	private int loc_down_halfTexel, loc_down_inputTex;
+	private int loc_up_halfTexel, loc_up_inputTex;
 	
 	private class GaussianBlurVFXInstance extends VideoEffectInstance {
-		private final IntBuffer bufTex = Buffers.newDirectIntBuffer(1);
-		private final IntBuffer bufFbo = Buffers.newDirectIntBuffer(1);
+		private final OutputCache outputCache = new OutputCache(PNAME_direction, PNAME_radius, PNAME_quality);
 		
-		private int alt_fbo = 0;
-		private int alt_fbo_color = 0;
+		// Fast mode: pyr[i] is the level i + 1, pyr[levels] is the coarse level's ping-pong buffer
+		private final RenderTargetPool.Target[] pyr = new RenderTargetPool.Target[FAST_MAX_LEVELS + 1];
 		
-		private int alt_fbo_width = 0;
-		private int alt_fbo_height = 0;
-		
-		private float radius;
-		private float sigma;
+		private GaussianKernel kernel;
 		
 		public void setupParameters() {
 			this.addParameter(new OptionParam(PNAME_direction, 0,
@@ -66,81 +76,199 @@ public class GaussianBlurVFX extends VideoEffect {
 				"vertical"
 			));
 			this.addParameter(new FloatParam(PNAME_radius, 8, 1, 0, 128));
+			this.addParameter(new OptionParam(PNAME_quality, 0,
+				"exact",
+				"fast"
+			));
+			this.addParameter(new BooleanParam(PNAME_cacheOutput, BoolValue.FALSE));
 		}
 
 		public void setupVideo(GL3 gl) {
+			GaussianBlurVFX.this.video.setup(gl);
 		}
 
-		private void setupAltFBO(GL3 gl, VideoEffectArgs args) {
-			if(this.alt_fbo_width == args.width && this.alt_fbo_height == args.height)
-				return;
-			
-			if(this.alt_fbo == 0) {
-				glu.createFramebuffers(gl, 1, args.width, args.height, this.bufTex, this.bufFbo);
-				this.alt_fbo = this.bufFbo.get(0);
-				this.alt_fbo_color = this.bufTex.get(0);
-			} else {
-				gl.glBindTexture(GL_TEXTURE_2D, this.alt_fbo_color);
-				gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, args.width, args.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
-			}
-			
-			this.alt_fbo_width = args.width;
-			this.alt_fbo_height = args.height;
-		}
-		
-		private void hPass(GL3 gl, VideoEffectArgs args) {
-			gl.glUniform4f(GaussianBlurVFX.this.loc_sigma_radius_offsetScale, this.sigma, this.radius, 1.0f / args.width, 0.0f);
+		private void hPass(GL3 gl, int width) {
+			GLState.uniform4f(gl, GaussianBlurVFX.this.loc_center_taps_offsetScale, this.kernel.getCenterWeight(), this.kernel.getTapCount(), 1.0f / width, 0.0f);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 
-		private void vPass(GL3 gl, VideoEffectArgs args) {
-			gl.glUniform4f(GaussianBlurVFX.this.loc_sigma_radius_offsetScale, this.sigma, this.radius, 0.0f, 1.0f / args.height);
+		private void vPass(GL3 gl, int height) {
+			GLState.uniform4f(gl, GaussianBlurVFX.this.loc_center_taps_offsetScale, this.kernel.getCenterWeight(), this.kernel.getTapCount(), 0.0f, 1.0f / height);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 		
+		private void uploadKernel(GL3 gl, float sigma) {
+			this.kernel = GaussianKernel.get(sigma);
+			
+			float[] taps = this.kernel.getTaps();
+			if(taps.length != 0) GLState.uniform4fv(gl, GaussianBlurVFX.this.loc_taps, taps.length / 4, taps);
+		}
+		
+		private int fastLevels(VideoEffectArgs args, int direction, float sigma) {
+			int levels = (int) Math.floor(Math.log(sigma / FAST_COARSE_RADIUS) / Math.log(2));
+			levels = Math.min(levels, FAST_MAX_LEVELS);
+			
+			// Don't go below 1px on the blurred axes
+			if(direction != POPTVAL_VERTICAL) while(levels > 0 && (args.width >> levels) == 0) levels--;
+			if(direction != POPTVAL_HORIZONTAL) while(levels > 0 && (args.height >> levels) == 0) levels--;
+			
+			return levels;
+		}
+		
+		// Downsample along the blurred axes, blur the coarsest level, then upsample back with a tent filter
+		private void applyFast(GL3 gl, VideoEffectArgs args, int direction, float sigma, int levels) {
+			float axisX = direction != POPTVAL_VERTICAL ? 1.0f : 0.0f;
+			float axisY = direction != POPTVAL_HORIZONTAL ? 1.0f : 0.0f;
+			
+			int srcTex = args.texInput;
+			int srcWidth = args.width;
+			int srcHeight = args.height;
+			
+			// Levels are at most halved: everything fits in 2 full frames
+			for(int i = 0; i < levels; i++) {
+				int w = axisX != 0 ? args.width >> (i + 1) : args.width;
+				int h = axisY != 0 ? args.height >> (i + 1) : args.height;
+				
+				this.pyr[i] = RenderTargetPool.acquire(gl, w, h, GL_RGBA8);
+			}
+			
+			this.pyr[levels] = RenderTargetPool.acquire(gl, this.pyr[levels - 1].getWidth(), this.pyr[levels - 1].getHeight(), GL_RGBA8);
+			
+			GLState.bindVertexArray(gl, GaussianBlurVFX.this.quadVAO);
+			GLState.useProgram(gl, GaussianBlurVFX.this.prog_down);
+			
+			for(int i = 0; i < levels; i++) {
+				int w = this.pyr[i].getWidth();
+				int h = this.pyr[i].getHeight();
+				
+				gl.glBindFramebuffer(GL_FRAMEBUFFER, this.pyr[i].getFramebuffer());
+				gl.glViewport(0, 0, w, h);
+				GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_down_inputTex, srcTex, 0);
+				GLState.uniform2f(gl, GaussianBlurVFX.this.loc_down_halfTexel, axisX * 0.5f / srcWidth, axisY * 0.5f / srcHeight);
+				gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
+				
+				srcTex = this.pyr[i].getTexture();
+				srcWidth = w;
+				srcHeight = h;
+			}
+			
+			// Blur what's left at the coarsest level
+			
+			GLState.useProgram(gl, GaussianBlurVFX.this.prog);
+			this.uploadKernel(gl, sigma / (1 << levels));
+			
+			if(axisX != 0) {
+				gl.glBindFramebuffer(GL_FRAMEBUFFER, this.pyr[levels].getFramebuffer());
+				GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, srcTex, 0);
+				this.hPass(gl, srcWidth);
+				
+				srcTex = this.pyr[levels].getTexture();
+			}
+			
+			if(axisY != 0) {
+				int dst = srcTex == this.pyr[levels].getTexture() ? levels - 1 : levels;
+				
+				gl.glBindFramebuffer(GL_FRAMEBUFFER, this.pyr[dst].getFramebuffer());
+				GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, srcTex, 0);
+				this.vPass(gl, srcHeight);
+				
+				srcTex = this.pyr[dst].getTexture();
+			}
+			
+			GLState.useProgram(gl, GaussianBlurVFX.this.prog_up);
+			
+			for(int i = levels - 2; i >= -1; i--) {
+				int w = i >= 0 ? this.pyr[i].getWidth() : args.width;
+				int h = i >= 0 ? this.pyr[i].getHeight() : args.height;
+				
+				gl.glBindFramebuffer(GL_FRAMEBUFFER, i >= 0 ? this.pyr[i].getFramebuffer() : args.fboOutput);
+				gl.glViewport(0, 0, w, h);
+				GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_up_inputTex, srcTex, 0);
+				GLState.uniform2f(gl, GaussianBlurVFX.this.loc_up_halfTexel, axisX * 0.5f / srcWidth, axisY * 0.5f / srcHeight);
+				gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
+				
+				if(i >= 0) srcTex = this.pyr[i].getTexture();
+				srcWidth = w;
+				srcHeight = h;
+			}
+			
+			for(int i = 0; i <= levels; i++) {
+				RenderTargetPool.release(gl, this.pyr[i]);
+				this.pyr[i] = null;
+			}
+		}
+		
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
+			boolean cacheOutput = args.parameters.get(PNAME_cacheOutput) == BoolValue.TRUE;
+			
+			if(!cacheOutput) this.outputCache.clear(gl);
+			else this.outputCache.restore(gl, args, 0);
+			
+			this.render(gl, args);
+			
+			if(cacheOutput) this.outputCache.store(gl, args, 0);
+		}
+		
+		private void render(GL3 gl, VideoEffectArgs args) {
 			int direction = (int) args.parameters.get(PNAME_direction);
-			this.sigma = (float) args.parameters.get(PNAME_radius);
+			float sigma = (float) args.parameters.get(PNAME_radius);
+			int quality = (int) args.parameters.get(PNAME_quality);
 			
-			if(this.sigma == 0) {
+			if(sigma == 0) {
 				args.cancelled = true;
 				return;
 			}
 			
-			this.radius = (float) Math.ceil(this.sigma * 3);
+			if(quality == POPTVAL_FAST && sigma >= FAST_MIN_RADIUS) {
+				int levels = this.fastLevels(args, direction, sigma);
+				
+				if(levels > 0) {
+					this.applyFast(gl, args, direction, sigma, levels);
+					return;
+				}
+			}
 			
-			gl.glUseProgram(GaussianBlurVFX.this.prog);
+			GLState.useProgram(gl, GaussianBlurVFX.this.prog);
+			this.uploadKernel(gl, sigma);
 			
-			gl.glBindVertexArray(GaussianBlurVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, GaussianBlurVFX.this.quadVAO);
 			
 			switch(direction) {
 				case POPTVAL_BOTH:
-					this.setupAltFBO(gl, args);
+					RenderTargetPool.Target alt = RenderTargetPool.acquire(gl, args.width, args.height, GL_RGBA8);
 					
-					gl.glBindFramebuffer(GL_FRAMEBUFFER, this.alt_fbo);
-					GaussianBlurVFX.glu.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, args.texInput, 0);
-					this.hPass(gl, args);
+					gl.glBindFramebuffer(GL_FRAMEBUFFER, alt.getFramebuffer());
+					GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, args.texInput, 0);
+					this.hPass(gl, args.width);
 
 					gl.glBindFramebuffer(GL_FRAMEBUFFER, args.fboOutput);
-					GaussianBlurVFX.glu.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, this.alt_fbo_color, 0);
-					this.vPass(gl, args);
+					GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, alt.getTexture(), 0);
+					this.vPass(gl, args.height);
+					
+					RenderTargetPool.release(gl, alt);
 					break;
 				case POPTVAL_HORIZONTAL:
-					GaussianBlurVFX.glu.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, args.texInput, 0);
-					this.hPass(gl, args);
+					GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, args.texInput, 0);
+					this.hPass(gl, args.width);
 					break;
 				case POPTVAL_VERTICAL:
-					GaussianBlurVFX.glu.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, args.texInput, 0);
-					this.vPass(gl, args);
+					GLState.uniformTexture(gl, GaussianBlurVFX.this.loc_inputTex, args.texInput, 0);
+					this.vPass(gl, args.height);
 					break;
 			}
 		}
 
 		public void disposeVideo(GL3 gl) {
+			this.outputCache.clear(gl);
 		}
 	}
 	
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		ProgramLoader.prefetch("fx/gaussian_blur/", "main_vert.vs", "main_frag.fs", "down_frag.fs", "up_frag.fs");
+		
 		return new GaussianBlurVFXInstance();
 	}
 
@@ -153,15 +281,39 @@ public class GaussianBlurVFX extends VideoEffect {
 	}
 
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = GaussianBlurVFX.glu.createProgram(gl, "fx/gaussian_blur/", "main_vert.vs", "main_frag.fs");
+		RenderTargetPool.retain();
+		OutputCache.retain();
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		this.prog = ProgramLoader.createProgram(gl, "fx/gaussian_blur/", "main_vert.vs", "main_frag.fs");
 
-		this.loc_sigma_radius_offsetScale = gl.glGetUniformLocation(this.prog, "sigma_radius_offsetScale");
+		this.loc_center_taps_offsetScale = gl.glGetUniformLocation(this.prog, "center_taps_offsetScale");
+		this.loc_taps = gl.glGetUniformLocation(this.prog, "taps");
 		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
 		
+		this.prog_down = ProgramLoader.createProgram(gl, "fx/gaussian_blur/", "main_vert.vs", "down_frag.fs");
+		this.loc_down_halfTexel = gl.glGetUniformLocation(this.prog_down, "halfTexel");
+		this.loc_down_inputTex = gl.glGetUniformLocation(this.prog_down, "inputTex");
+		
+		this.prog_up = ProgramLoader.createProgram(gl, "fx/gaussian_blur/", "main_vert.vs", "up_frag.fs");
+		this.loc_up_halfTexel = gl.glGetUniformLocation(this.prog_up, "halfTexel");
+		this.loc_up_inputTex = gl.glGetUniformLocation(this.prog_up, "inputTex");
+		
 		this.quadVAO = GaussianBlurVFX.glu.createFullQuadVAO(gl);
 	}
 
+	private void disposeGlobalVideo(GL3 gl) {
+		GLState.deleteProgram(gl, this.prog);
+		GLState.deleteProgram(gl, this.prog_down);
+		GLState.deleteProgram(gl, this.prog_up);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
+		RenderTargetPool.dispose(gl);
+		OutputCache.dispose(gl);
 		glu.dispose(gl);
 	}
 }
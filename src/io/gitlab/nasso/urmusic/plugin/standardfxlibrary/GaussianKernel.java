@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One side of a normalized gaussian kernel, with neighbouring taps merged so that
+ * a single bilinear fetch samples two texels at once.
+ * Kernels are cached per sigma, so animating the radius doesn't recompute them every frame.
+ */
+final class GaussianKernel {
+	// radius = ceil(3 * sigma) texels on each side, for sigma <= 128
+	public static final int MAX_RADIUS = 384;
+	public static final int MAX_TAPS = (MAX_RADIUS + 1) / 2;
+	
+	private static final int CACHE_SIZE = 64;
+	
+	private static final Map<Float, GaussianKernel> cache = new LinkedHashMap<Float, GaussianKernel>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<Float, GaussianKernel> eldest) {
+			return this.size() > CACHE_SIZE;
+		}
+	};
+	
+	private final float centerWeight;
+	private final int tapCount;
+	
+	// (offset, weight) pairs in texels, packed two per vec4
+	private final float[] taps;
+	
+	private GaussianKernel(float sigma) {
+		int radius = Math.min((int) Math.ceil(sigma * 3), MAX_RADIUS);
+		
+		double[] w = new double[radius + 2];
+		double sum = 0.0;
+		for(int i = 0; i <= radius; i++) {
+			w[i] = Math.exp(-0.5 * i * i / ((double) sigma * sigma));
+			sum += i == 0 ? w[i] : 2.0 * w[i];
+		}
+		
+		this.centerWeight = (float) (w[0] / sum);
+		this.tapCount = (radius + 1) / 2;
+		this.taps = new float[(this.tapCount + 1) / 2 * 4];
+		
+		// Texels i and i + 1 merged into one fetch between them, weighted by their sum
+		for(int t = 0; t < this.tapCount; t++) {
+			int i = t * 2 + 1;
+			double weight = w[i] + w[i + 1];
+			
+			this.taps[t * 2] = weight == 0.0 ? i : (float) ((i * w[i] + (i + 1) * w[i + 1]) / weight);
+			this.taps[t * 2 + 1] = (float) (weight / sum);
+		}
+	}
+	
+	public static synchronized GaussianKernel get(float sigma) {
+		GaussianKernel k = cache.get(sigma);
+		
+		if(k == null) cache.put(sigma, k = new GaussianKernel(sigma));
+		
+		return k;
+	}
+	
+	public float getCenterWeight() {
+		return this.centerWeight;
+	}
+	
+	public int getTapCount() {
+		return this.tapCount;
+	}
+	
+	// To be uploaded as a vec4 array of (getTapCount() + 1) / 2 elements
+	public float[] getTaps() {
+		return this.taps;
+	}
+}
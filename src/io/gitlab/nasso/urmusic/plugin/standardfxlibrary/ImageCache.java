@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import io.gitlab.nasso.urmusic.model.renderer.video.NGLUtils;
+
+/**
+ * Image textures shared by every ImageDisplay instance, keyed by absolute path and last modified time.
+ * Entries are reference counted. Unused ones stay around, so re-selecting a recent file is instant,
+ * until the textures go over the budget (in MB, system property "urmstdfx.imageCacheBudget", 512 by default).
+ */
+final class ImageCache {
+	// Size of the placeholder checkerboard
+	public static final int DEFAULT_SIZE = 256;
+	
+	private static final long BUDGET = Long.getLong("urmstdfx.imageCacheBudget", 512) * 1024 * 1024;
+	
+	private static final NGLUtils glu = new NGLUtils("image cache glu", ImageCache.class.getClassLoader());
+	
+	public static final class Entry {
+		private final Path path;
+		private final long lastModified;
+		
+		// Decoding starts with the first request(), and again each time a request needs a bigger version
+		private Future<ImagePixels> decoding = null;
+		private int requestedWidth = 0, requestedHeight = 0;
+		private boolean fullSize = false;
+		
+		private int tex = 0;
+		private int width, height;
+		private long bytes = 0;
+		private boolean failed = false;
+		
+		private int refCount = 0;
+		private long lastUsed;
+		
+		private Entry(Path path, long lastModified) {
+			this.path = path;
+			this.lastModified = lastModified;
+		}
+		
+		// True once a texture is uploaded, or the image couldn't be loaded
+		public boolean isReady() {
+			synchronized(ImageCache.class) {
+				return this.tex != 0 || this.failed || (this.decoding != null && this.decoding.isDone());
+			}
+		}
+		
+		/*
+		 * The texture will be at least big enough to cover width x height (or the full image if it's smaller).
+		 * Never shrinks: a bigger version is decoded in the background, the current texture stays until it's ready.
+		 */
+		public void request(int width, int height) {
+			synchronized(ImageCache.class) {
+				if(this.fullSize || this.failed || (width <= this.requestedWidth && height <= this.requestedHeight))
+					return;
+				
+				this.requestedWidth = Math.max(width, this.requestedWidth);
+				this.requestedHeight = Math.max(height, this.requestedHeight);
+				
+				if(this.decoding != null) this.decoding.cancel(false);
+				this.decoding = ImageLoader.decode(this.path, this.requestedWidth, this.requestedHeight);
+			}
+		}
+		
+		// Blocks until the current decoding (if any) is done. getTexture then has the result, or the failure.
+		public void await() {
+			Future<ImagePixels> f;
+			synchronized(ImageCache.class) {
+				f = this.decoding;
+			}
+			
+			if(f == null) return;
+			
+			try {
+				f.get();
+			} catch(CancellationException | ExecutionException e) {
+				// Handled by getTexture
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		// True while a (bigger) version is being decoded
+		public boolean isDecoding() {
+			synchronized(ImageCache.class) {
+				return this.decoding != null;
+			}
+		}
+		
+		public boolean isFailed() {
+			return this.failed;
+		}
+		
+		public int getWidth() {
+			return this.width;
+		}
+		
+		public int getHeight() {
+			return this.height;
+		}
+		
+		// GL thread. Uploads the decoded pixels if needed. 0 if not ready (or failed).
+		public int getTexture(GL3 gl) {
+			synchronized(ImageCache.class) {
+				if(this.failed || this.decoding == null || !this.decoding.isDone())
+					return this.tex;
+				
+				ImagePixels img;
+				try {
+					img = this.decoding.get();
+				} catch(CancellationException | InterruptedException | ExecutionException e) {
+					System.err.println("Couldn't load: " + this.path.toString());
+					this.decoding = null;
+					this.failed = this.tex == 0; // A failed upgrade keeps the current version
+					return this.tex;
+				}
+				
+				this.decoding = null;
+				
+				// Replaces the smaller version, if any
+				delete(gl, this);
+				
+				this.tex = upload(gl, img);
+				this.width = img.getWidth();
+				this.height = img.getHeight();
+				this.fullSize = img.isFullSize();
+				this.bytes = (long) this.width * this.height * 4 * 4 / 3; // with the mipmaps
+				
+				textureBytes += this.bytes;
+				trim(gl);
+				
+				return this.tex;
+			}
+		}
+	}
+	
+	private static final Map<Path, Entry> entries = new HashMap<>();
+	private static long textureBytes = 0;
+	
+	private static final List<Entry> deadEntries = new ArrayList<>();
+	
+	private static final ImagePixels defaultImage = ImagePixels.from(createDefaultImage());
+	private static int defaultTex = 0;
+	private static int users = 0;
+	
+	private ImageCache() {
+	}
+	
+	// Called by ImageDisplay in its globalVideoSetup
+	public static synchronized void retain() {
+		users++;
+	}
+	
+	// Called by ImageDisplay in its globalVideoDispose. The last one deletes every texture.
+	public static synchronized void dispose(GL3 gl) {
+		if(--users > 0) return;
+		
+		for(Entry e : entries.values()) {
+			if(e.decoding != null) e.decoding.cancel(false);
+			e.tex = 0;
+		}
+		
+		entries.clear();
+		deadEntries.clear();
+		textureBytes = 0;
+		defaultTex = 0;
+		users = 0;
+		
+		TextureUploader.dispose(gl);
+		glu.dispose(gl);
+	}
+	
+	// Any thread. The entry must be released when not displayed anymore. Nothing is decoded until Entry.request is called.
+	public static synchronized Entry acquire(Path path) {
+		path = path.toAbsolutePath();
+		
+		long lastModified;
+		try {
+			lastModified = Files.getLastModifiedTime(path).toMillis();
+		} catch(IOException e) {
+			lastModified = -1;
+		}
+		
+		Entry e = entries.get(path);
+		if(e != null && e.lastModified != lastModified) {
+			// The file changed: the old entry goes away once nobody uses it
+			entries.remove(path);
+			if(e.refCount == 0) deadEntries.add(e);
+			e = null;
+		}
+		
+		if(e == null) {
+			e = new Entry(path, lastModified);
+			entries.put(path, e);
+		}
+		
+		e.refCount++;
+		return e;
+	}
+	
+	// Any thread
+	public static synchronized void release(Entry e) {
+		e.refCount--;
+		e.lastUsed = System.nanoTime();
+		
+		if(e.refCount == 0 && entries.get(e.path) != e) deadEntries.add(e);
+	}
+	
+	// GL thread. The checkerboard shown while an image is loading or when it can't be loaded.
+	public static synchronized int getDefaultTexture(GL3 gl) {
+		if(defaultTex == 0) defaultTex = upload(gl, defaultImage);
+		
+		return defaultTex;
+	}
+	
+	public static synchronized long getTextureBytes() {
+		return textureBytes;
+	}
+	
+	public static synchronized int getEntryCount() {
+		return entries.size();
+	}
+	
+	// GL thread. Deletes outdated entries, then unused ones, least recently used first, until under budget.
+	public static synchronized void trim(GL3 gl) {
+		for(Entry e : deadEntries)
+			delete(gl, e);
+		
+		deadEntries.clear();
+		
+		while(textureBytes > BUDGET) {
+			Entry lru = null;
+			for(Entry e : entries.values()) {
+				if(e.refCount == 0 && e.tex != 0 && (lru == null || e.lastUsed < lru.lastUsed)) lru = e;
+			}
+			
+			if(lru == null) break; // Everything left is on screen
+			
+			entries.remove(lru.path);
+			delete(gl, lru);
+		}
+	}
+	
+	private static void delete(GL3 gl, Entry e) {
+		if(e.decoding != null) e.decoding.cancel(false);
+		
+		if(e.tex != 0) {
+			glu.deleteTexture(gl, e.tex);
+			GLState.invalidateTextures();
+			textureBytes -= e.bytes;
+			e.tex = 0;
+		}
+	}
+	
+	// GL thread. An empty texture set up like the cached ones (mipmapped, clamped), not managed by the cache.
+	public static int createTexture(GL3 gl) {
+		int tex = glu.genTexture(gl);
+		
+		gl.glBindTexture(GL.GL_TEXTURE_2D, tex);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR_MIPMAP_LINEAR);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+		GLState.invalidateTextures();
+		
+		return tex;
+	}
+	
+	public static void deleteTexture(GL3 gl, int tex) {
+		glu.deleteTexture(gl, tex);
+		GLState.invalidateTextures();
+	}
+	
+	private static int upload(GL3 gl, ImagePixels img) {
+		int tex = createTexture(gl);
+		TextureUploader.upload(gl, tex, img, true);
+		
+		return tex;
+	}
+	
+	private static BufferedImage createDefaultImage() {
+		int half = DEFAULT_SIZE / 2;
+		
+		BufferedImage img = new BufferedImage(DEFAULT_SIZE, DEFAULT_SIZE, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = img.createGraphics();
+		g2d.setColor(Color.MAGENTA);
+		g2d.fillRect(0, 0, DEFAULT_SIZE, DEFAULT_SIZE);
+		g2d.setColor(Color.BLACK);
+		g2d.fillRect(0, 0, half, half);
+		g2d.fillRect(half, half, half, half);
+		g2d.dispose();
+		
+		return img;
+	}
+}
@@ -19,15 +19,10 @@
  ******************************************************************************/
 package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.awt.Dimension;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
-import javax.imageio.ImageIO;
-
 import org.joml.Matrix4f;
 import org.joml.Vector4f;
 import org.joml.Vector4fc;
@@ -35,10 +30,12 @@ import org.joml.Vector4fc;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
+import io.gitlab.nasso.urmusic.common.BoolValue;
 import io.gitlab.nasso.urmusic.common.event.EffectParamListener;
 import io.gitlab.nasso.urmusic.controller.UrmusicController;
 import io.gitlab.nasso.urmusic.model.project.VideoEffect;
 import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+import io.gitlab.nasso.urmusic.model.project.param.BooleanParam;
 import io.gitlab.nasso.urmusic.model.project.param.BoundsParam;
 import io.gitlab.nasso.urmusic.model.project.param.EffectParam;
 import io.gitlab.nasso.urmusic.model.project.param.FileParam;
@@ -52,34 +49,44 @@ public class ImageDisplayVFX extends VideoEffect {
 	private static final String PNAME_bounds = "bounds";
 	private static final String PNAME_blendingMode = "blendingMode";
 	private static final String PNAME_opacity = "opacity";
+	private static final String PNAME_sequence = "sequence";
+	private static final String PNAME_sequenceFps = "sequenceFps";
+	private static final String PNAME_sequenceOffset = "sequenceOffset";
+	
+	// Images are never decoded bigger than needed for bounds of that many times the output size (zooming in further gets blurry)
+	private static final int MAX_BOUNDS_OVERSCAN = 2;
 	
 	private NGLUtils glu = new NGLUtils("image display global", ImageDisplayVFX.class.getClassLoader());
 	
-	private int prog, quadVAO;
-	private int loc_xform, loc_inputTex, loc_imageTex, loc_blending, loc_opacity;
+	// One program per blending mode
+	private static final int LOC_xform = 0;
+	private static final int LOC_inputTex = 1;
+	private static final int LOC_imageTex = 2;
+	private static final int LOC_opacity = 3;
+	private final ProgramVariants progs = new ProgramVariants("fx/image_display/", "main_vert.vs", "main_frag.fs", ProgramVariants.PD_OP, ProgramVariants.PD_OP_COUNT,
+		"xform", "inputTex", "imageTex", "opacity"
+	);
+	
+	private int quadVAO;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
 	
 	public class ImageDisplayVFXInstance extends VideoEffectInstance {
-		private final BufferedImage defaultImage;
-		
 		private Matrix4f xform = new Matrix4f();
 		private Path lastSrc = null;
-		private BufferedImage loadedImage = null;
-		private int tex;
 		
-		private boolean textureLoaded = true;
+		// The wanted image, and the one on screen until the wanted one is ready. Both are references held on the cache.
+		private ImageCache.Entry image = null;
+		private ImageCache.Entry shownImage = null;
 		
-		private EffectParamListener<Path> fileListener;
+		// Image sequence mode: frames are streamed into a texture of our own
+		private ImageSequence sequence = null;
+		private int sequenceTex = 0;
+		private int sequenceFrame = -1;
+		private boolean sequenceFrameFailed = false;
+		private int sequenceTexWidth = -1, sequenceTexHeight = -1;
+		private Path missingSequence = null; // not retried until the source changes
 		
-		public ImageDisplayVFXInstance() {
-			this.defaultImage = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
-			Graphics2D g2d = this.defaultImage.createGraphics();
-			g2d.setColor(Color.MAGENTA);
-			g2d.fillRect(0, 0, 256, 256);
-			g2d.setColor(Color.BLACK);
-			g2d.fillRect(0, 0, 128, 128);
-			g2d.fillRect(128, 128, 128, 128);
-			g2d.dispose();
-		}
+		private EffectParamListener<Path> fileListener;
 		
 		public void setupParameters() {
 			FileParam source = new FileParam(PNAME_source);
@@ -87,15 +94,27 @@ public class ImageDisplayVFX extends VideoEffect {
 				private Vector4f _vec4 = new Vector4f();
 				
 				public void valueChanged(EffectParam<Path> source, Path newVal) {
-					ImageDisplayVFXInstance.this.lastSrc = newVal.toAbsolutePath();
-					ImageDisplayVFXInstance.this.reloadImage();
+					Path src = newVal.toAbsolutePath();
+					ImageDisplayVFXInstance.this.lastSrc = src;
+					ImageDisplayVFXInstance.this.missingSequence = null;
+					
+					if(ImageSequence.isPattern(src)) {
+						// Size the bounds after the first frame
+						ImageSequence seq = ImageSequence.open(src);
+						if(seq != null) src = seq.getFramePath(seq.getFirst());
+					} else {
+						ImageDisplayVFXInstance.this.reloadImage();
+					}
 					
 					BoundsParam bounds = (BoundsParam) ImageDisplayVFXInstance.this.getParamByID(PNAME_bounds);
 					
+					// The image isn't decoded yet, but its header is enough to know its size
+					Dimension size = ImageLoader.readSize(src);
+					
 					int frame = UrmusicController.getFrameCursor();
 					this._vec4.set(bounds.getValue(frame));
-					this._vec4.z = ImageDisplayVFXInstance.this.loadedImage.getWidth();
-					this._vec4.w = ImageDisplayVFXInstance.this.loadedImage.getHeight();
+					this._vec4.z = size != null ? size.width : ImageCache.DEFAULT_SIZE;
+					this._vec4.w = size != null ? size.height : ImageCache.DEFAULT_SIZE;
 					bounds.setValue(this._vec4, frame);
 				}
 				
@@ -125,30 +144,119 @@ public class ImageDisplayVFX extends VideoEffect {
 				"xor"
 			));
 			this.addParameter(new FloatParam(PNAME_opacity, 1.0f, 0.01f, 0.0f, 1.0f));
+			this.addParameter(new BooleanParam(PNAME_sequence, BoolValue.FALSE));
+			this.addParameter(new FloatParam(PNAME_sequenceFps, 30.0f, 1.0f, 0.0f, Float.MAX_VALUE));
+			this.addParameter(new FloatParam(PNAME_sequenceOffset, 0.0f, 1.0f));
+		}
+		
+		private synchronized void reloadImage() {
+			ImageCache.Entry previous = this.image;
+			this.image = ImageCache.acquire(this.lastSrc);
+			
+			if(previous != null && previous != this.shownImage) ImageCache.release(previous);
 		}
 		
-		private void reloadImage() {
-			try {
-				this.loadedImage = ImageIO.read(this.lastSrc.toFile());
-			} catch(IOException e) {
-				System.err.println("Couldn't load: " + this.lastSrc.toString());
-				this.loadedImage = this.defaultImage;
+		// GL thread. Swaps to the wanted image once it's ready and returns the texture to show.
+		private synchronized int updateTexture(GL3 gl, Vector4fc bounds, VideoEffectArgs args) {
+			ImageCache.trim(gl);
+			
+			// Only decode as big as the image is displayed, a bigger version is decoded if the bounds grow
+			if(this.image != null) {
+				long w = (long) Math.ceil(Math.abs(bounds.z()));
+				long h = (long) Math.ceil(Math.abs(bounds.w()));
+				
+				this.image.request(
+					(int) Math.max(1, Math.min(w, (long) args.width * MAX_BOUNDS_OVERSCAN)),
+					(int) Math.max(1, Math.min(h, (long) args.height * MAX_BOUNDS_OVERSCAN))
+				);
+			}
+			
+			// While previewing, the current texture stays until the new one is decoded.
+			// An export (or the very first image) waits for it instead of showing the checkerboard.
+			if(this.image != null && (this.shownImage == null || !RenderMode.isInteractive(args.time)))
+				this.image.await();
+			
+			if(this.image != null && this.image != this.shownImage && this.image.isReady()) {
+				if(this.shownImage != null) ImageCache.release(this.shownImage);
+				
+				this.shownImage = this.image;
 			}
 			
-			this.textureLoaded = false;
+			int tex = this.shownImage != null ? this.shownImage.getTexture(gl) : 0;
+			if(tex == 0) tex = ImageCache.getDefaultTexture(gl);
+			
+			return tex;
 		}
 		
-		public void setupVideo(GL3 gl) {
-			this.tex = ImageDisplayVFX.this.glu.genTexture(gl);
+		// GL thread. Uploads the frame at that time if it isn't the one on screen, and returns the texture to show.
+		private int updateSequenceTexture(GL3 gl, Path src, float time, float fps) {
+			if((this.sequence == null || !this.sequence.getSource().equals(src)) && !src.equals(this.missingSequence)) {
+				this.closeSequence(gl);
+				this.sequence = ImageSequence.open(src);
+				
+				if(this.sequence == null) {
+					this.missingSequence = src;
+					System.err.println("Couldn't find the image sequence: " + src.toString());
+				}
+			}
 			
-			gl.glBindTexture(GL.GL_TEXTURE_2D, this.tex);
-			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
-			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR_MIPMAP_LINEAR);
-			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
-			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+			if(this.sequence == null) return ImageCache.getDefaultTexture(gl);
+			
+			// While previewing, the previous frame stays on screen until that one is decoded.
+			// An export (or the first frame) waits for it, so it never shows a stale frame.
+			int frame = this.sequence.indexAt(time, fps);
+			boolean wait = this.sequenceFrame == -1 || !RenderMode.isInteractive(time);
+			if(frame != this.sequenceFrame && (wait || this.sequence.isReady(gl, frame))) {
+				ImagePixels px = this.sequence.get(gl, frame);
+				TextureUploader.Staging staging = this.sequence.takeStaging(frame);
+				
+				this.sequenceFrame = frame;
+				this.sequenceFrameFailed = px == null;
+				
+				if(px != null) {
+					boolean realloc = this.sequenceTex == 0 || this.sequenceTexWidth != px.getWidth() || this.sequenceTexHeight != px.getHeight();
+					
+					if(this.sequenceTex == 0) this.sequenceTex = ImageCache.createTexture(gl);
+					TextureUploader.upload(gl, this.sequenceTex, staging, px, realloc);
+					
+					this.sequenceTexWidth = px.getWidth();
+					this.sequenceTexHeight = px.getHeight();
+				} else if(staging != null) {
+					TextureUploader.release(gl, staging);
+				}
+			}
+			
+			// Nothing of this sequence uploaded yet: the texture may still hold a frame of the previous one
+			if(this.sequenceFrame == -1 || this.sequenceFrameFailed) return ImageCache.getDefaultTexture(gl);
+			
+			return this.sequenceTex;
+		}
+		
+		private void closeSequence(GL3 gl) {
+			if(this.sequence != null) this.sequence.dispose(gl);
+			
+			this.sequence = null;
+			this.sequenceFrame = -1;
+			this.missingSequence = null;
+		}
+		
+		public void setupVideo(GL3 gl) {
+			ImageDisplayVFX.this.video.setup(gl);
 		}
 		
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
+			this.render(gl, args, this.isSequence(args));
+		}
+		
+		private boolean isSequence(VideoEffectArgs args) {
+			Path src = (Path) args.parameters.get(PNAME_source);
+			
+			return args.parameters.get(PNAME_sequence) == BoolValue.TRUE || (src != null && ImageSequence.isPattern(src));
+		}
+		
+		private void render(GL3 gl, VideoEffectArgs args, boolean sequence) {
 			Path src = (Path) args.parameters.get(PNAME_source);
 			Vector4fc bounds = (Vector4fc) args.parameters.get(PNAME_bounds);
 			int blendingMode = (int) args.parameters.get(PNAME_blendingMode);
@@ -160,53 +268,76 @@ public class ImageDisplayVFX extends VideoEffect {
 			}
 			
 			src = src.toAbsolutePath();
-			if(!src.equals(this.lastSrc) && Files.exists(src) && Files.isRegularFile(src)) {
-				this.lastSrc = src;
-				this.reloadImage();
-			}
 			
-			if(!this.textureLoaded) {
-				ImageDisplayVFX.this.glu.loadImageToTexture(gl, this.tex, this.loadedImage, true);
-				this.textureLoaded = true;
+			int tex;
+			if(sequence) {
+				float fps = (float) args.parameters.get(PNAME_sequenceFps);
+				float offset = (float) args.parameters.get(PNAME_sequenceOffset);
+				
+				tex = this.updateSequenceTexture(gl, src, args.time - offset / 1000.0f, fps);
+			} else {
+				this.closeSequence(gl);
+				
+				if(!src.equals(this.lastSrc) && Files.exists(src) && Files.isRegularFile(src)) {
+					this.lastSrc = src;
+					this.reloadImage();
+				}
+				
+				tex = this.updateTexture(gl, bounds, args);
 			}
 			
 			this.xform.identity();
 			this.xform.translate((bounds.x() + bounds.z() / 2f) / args.width * 2f, -(bounds.y() + bounds.w() / 2f) / args.height * 2f, 0.0f);
 			this.xform.scale(bounds.z() / args.width, bounds.w() / args.height, 1.0f);
 			
-			gl.glUseProgram(ImageDisplayVFX.this.prog);
-			ImageDisplayVFX.this.glu.uniformMatrix(gl, ImageDisplayVFX.this.loc_xform, this.xform);
-			ImageDisplayVFX.this.glu.uniformTexture(gl, ImageDisplayVFX.this.loc_inputTex, args.texInput, 0);
-			ImageDisplayVFX.this.glu.uniformTexture(gl, ImageDisplayVFX.this.loc_imageTex, this.tex, 1);
-			gl.glUniform1i(ImageDisplayVFX.this.loc_blending, blendingMode);
-			gl.glUniform1f(ImageDisplayVFX.this.loc_opacity, opacity);
+			int[] loc = ImageDisplayVFX.this.progs.use(gl, blendingMode);
+			GLState.uniformMatrix(gl, loc[LOC_xform], this.xform);
+			GLState.uniformTexture(gl, loc[LOC_inputTex], args.texInput, 0);
+			GLState.uniformTexture(gl, loc[LOC_imageTex], tex, 1);
+			GLState.uniform1f(gl, loc[LOC_opacity], opacity);
 			
-			gl.glBindVertexArray(ImageDisplayVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, ImageDisplayVFX.this.quadVAO);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 		
-		public void disposeVideo(GL3 gl) {
-			ImageDisplayVFX.this.glu.deleteTexture(gl, this.tex);
+		public synchronized void disposeVideo(GL3 gl) {
+			if(this.image != null && this.image != this.shownImage) ImageCache.release(this.image);
+			if(this.shownImage != null) ImageCache.release(this.shownImage);
+			this.image = null;
+			this.shownImage = null;
+			
+			this.closeSequence(gl);
+			if(this.sequenceTex != 0) ImageCache.deleteTexture(gl, this.sequenceTex);
+			this.sequenceTex = 0;
+			
 			((FileParam) this.getParamByID(PNAME_source)).removeEffectParamListener(this.fileListener);
 		}
 	}
 	
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		this.progs.prefetch();
+		
 		return new ImageDisplayVFXInstance();
 	}
 	
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = this.glu.createProgram(gl, "fx/image_display/", "main_vert.vs", "main_frag.fs");
-		this.loc_xform = gl.glGetUniformLocation(this.prog, "xform");
-		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
-		this.loc_imageTex = gl.glGetUniformLocation(this.prog, "imageTex");
-		this.loc_blending = gl.glGetUniformLocation(this.prog, "blendingMode");
-		this.loc_opacity = gl.glGetUniformLocation(this.prog, "opacity");
-		
+		ImageCache.retain();
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		// The programs themselves are built by progs, for the blending modes actually used
 		this.quadVAO = this.glu.createFullQuadVAO(gl);
 	}
 	
+	private void disposeGlobalVideo(GL3 gl) {
+		this.progs.dispose(gl);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
+		ImageCache.dispose(gl);
 		this.glu.dispose(gl);
 	}
 	
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes images off the GL and UI threads.
+ */
+final class ImageLoader {
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	
+	private static final ExecutorService executor = Executors.newFixedThreadPool(
+		Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)),
+		r -> {
+			Thread t = new Thread(r, "urmstdfx image decoder " + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	);
+	
+	private ImageLoader() {
+	}
+	
+	/*
+	 * Decodes and converts the pixels for TextureUploader, downscaled (aspect ratio kept) if the image is bigger
+	 * than it needs to be to cover maxWidth x maxHeight.
+	 * The scale is rounded up to a half octave, so slowly growing sizes don't cause a decode every time.
+	 * The result goes through the DiskImageCache.
+	 */
+	public static Future<ImagePixels> decode(Path path, int maxWidth, int maxHeight) {
+		return executor.submit(() -> read(path, maxWidth, maxHeight, true));
+	}
+	
+	/*
+	 * A frame of an image sequence, full size. Frames are only shown once in a while, they'd fill the DiskImageCache.
+	 * The pixels are also copied into the staging buffer found in staging once decoded, if any (it can be set later).
+	 */
+	public static Future<ImagePixels> decodeFrame(Path path, AtomicReference<TextureUploader.Staging> staging) {
+		return executor.submit(() -> {
+			ImagePixels px = read(path, Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+			
+			TextureUploader.Staging s = staging.get();
+			if(s != null) s.fill(px);
+			
+			return px;
+		});
+	}
+	
+	private static ImagePixels read(Path path, int maxWidth, int maxHeight, boolean diskCache) throws IOException {
+		try(ImageInputStream in = ImageIO.createImageInputStream(path.toFile())) {
+			if(in == null) throw new IOException("Can't open " + path);
+			
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if(!readers.hasNext()) throw new IOException("Unsupported image format");
+			
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				
+				int w = reader.getWidth(0);
+				int h = reader.getHeight(0);
+				double scale = coverScale(w, h, maxWidth, maxHeight);
+				int tw = scale >= 1.0 ? w : Math.max(1, (int) Math.ceil(w * scale));
+				int th = scale >= 1.0 ? h : Math.max(1, (int) Math.ceil(h * scale));
+				
+				// Only the header has been read so far
+				ImagePixels px = diskCache ? DiskImageCache.load(path, tw, th) : null;
+				if(px != null) return px;
+				
+				if(scale >= 1.0) {
+					px = ImagePixels.from(reader.read(0), w, h);
+				} else {
+					// Skipping pixels while reading saves most of the decoding, keep 2x the target to filter properly
+					ImageReadParam param = reader.getDefaultReadParam();
+					int sub = (int) Math.max(1, Math.floor(0.5 / scale));
+					if(sub > 1) param.setSourceSubsampling(sub, sub, 0, 0);
+					
+					px = ImagePixels.from(resize(reader.read(0, param), tw, th), w, h);
+				}
+				
+				if(diskCache) DiskImageCache.storeLater(path, px);
+				
+				return px;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+	
+	private static double coverScale(int w, int h, int maxWidth, int maxHeight) {
+		double scale = Math.max((double) maxWidth / w, (double) maxHeight / h);
+		if(scale >= 1.0) return 1.0;
+		
+		// 1, 1/sqrt(2), 1/2, 1/(2 sqrt(2))...
+		int halfOctaves = (int) Math.floor(-2.0 * Math.log(scale) / Math.log(2.0));
+		return Math.pow(2.0, -halfOctaves / 2.0);
+	}
+	
+	// Halves with bilinear filtering while it's more than twice too big (a single pass would skip pixels), then bicubic
+	private static BufferedImage resize(BufferedImage img, int width, int height) {
+		BufferedImage cur = img;
+		
+		while(cur.getWidth() / 2 >= width && cur.getHeight() / 2 >= height)
+			cur = draw(cur, cur.getWidth() / 2, cur.getHeight() / 2, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		
+		if(cur.getWidth() != width || cur.getHeight() != height)
+			cur = draw(cur, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		
+		return cur;
+	}
+	
+	private static BufferedImage draw(BufferedImage src, int width, int height, Object interpolation) {
+		// Premultiplied, so transparent pixels don't bleed their color when filtered
+		BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		
+		Graphics2D g2d = dst.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+		g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		g2d.drawImage(src, 0, 0, width, height, null);
+		g2d.dispose();
+		
+		return dst;
+	}
+	
+	// Only reads the header, cheap enough to call from the UI thread. Returns null if it can't be read.
+	public static Dimension readSize(Path path) {
+		try(ImageInputStream in = ImageIO.createImageInputStream(path.toFile())) {
+			if(in == null) return null;
+			
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if(!readers.hasNext()) return null;
+			
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		} catch(IOException e) {
+			return null;
+		}
+	}
+}
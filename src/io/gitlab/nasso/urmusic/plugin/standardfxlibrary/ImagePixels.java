@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decoded pixels, ready to be copied to a texture as-is: RGBA, 8 bits per channel, bottom row first.
+ * Converting is the slow part of an upload, so it's done on the decoding threads.
+ */
+final class ImagePixels {
+	private final int width, height;
+	private final int sourceWidth, sourceHeight;
+	private final ByteBuffer data;
+	
+	private ImagePixels(int width, int height, int sourceWidth, int sourceHeight, ByteBuffer data) {
+		this.width = width;
+		this.height = height;
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.data = data;
+	}
+	
+	// data must already be in the right layout, e.g. mapped from DiskImageCache
+	public static ImagePixels wrap(int width, int height, int sourceWidth, int sourceHeight, ByteBuffer data) {
+		return new ImagePixels(width, height, sourceWidth, sourceHeight, data);
+	}
+	
+	public static ImagePixels from(BufferedImage img) {
+		return from(img, img.getWidth(), img.getHeight());
+	}
+	
+	// sourceWidth x sourceHeight: the size of the file, img may be a downscaled version of it
+	public static ImagePixels from(BufferedImage img, int sourceWidth, int sourceHeight) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		
+		ByteBuffer data = ByteBuffer.allocateDirect(w * h * 4).order(ByteOrder.BIG_ENDIAN);
+		int[] row = new int[w];
+		
+		// GL textures start at the bottom
+		for(int y = h - 1; y >= 0; y--) {
+			img.getRGB(0, y, w, 1, row, 0, w);
+			
+			for(int x = 0; x < w; x++) {
+				int argb = row[x];
+				data.putInt((argb << 8) | (argb >>> 24));
+			}
+		}
+		
+		data.flip();
+		return new ImagePixels(w, h, sourceWidth, sourceHeight, data);
+	}
+	
+	public int getWidth() {
+		return this.width;
+	}
+	
+	public int getHeight() {
+		return this.height;
+	}
+	
+	public int getSourceWidth() {
+		return this.sourceWidth;
+	}
+	
+	public int getSourceHeight() {
+		return this.sourceHeight;
+	}
+	
+	public boolean isFullSize() {
+		return this.width == this.sourceWidth && this.height == this.sourceHeight;
+	}
+	
+	// Read-only view, positioned at 0
+	public ByteBuffer getData() {
+		return this.data.asReadOnlyBuffer();
+	}
+	
+	public int getByteCount() {
+		return this.data.capacity();
+	}
+}
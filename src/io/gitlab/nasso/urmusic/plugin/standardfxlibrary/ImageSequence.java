@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Numbered image files (e.g. "frame_%05d.png") played as an animation.
+ * Frames ahead of the last requested one are decoded in the background, into a bounded ring.
+ * The nearest ones also get an upload buffer, filled by the decoding thread (see TextureUploader).
+ * GL thread only, except open.
+ */
+class ImageSequence {
+	// Number of frames decoded ahead, system property "urmstdfx.sequenceReadAhead"
+	private static final int READ_AHEAD = Math.max(1, Integer.getInteger("urmstdfx.sequenceReadAhead", 8));
+	
+	// printf-like: %d or %0Nd
+	private static final Pattern FORMAT = Pattern.compile("%(0(\\d+))?d");
+	private static final Pattern TRAILING_NUMBER = Pattern.compile("^(.*?)(\\d+)(\\.[^.]*)?$");
+	
+	private final Path source;
+	private final String prefix, suffix;
+	private final int digits; // 0: not padded
+	private final int first, last;
+	
+	private final int[] slotIndex = new int[READ_AHEAD + 1];
+	@SuppressWarnings("unchecked")
+	private final Future<ImagePixels>[] slots = new Future[READ_AHEAD + 1];
+	@SuppressWarnings("unchecked")
+	private final AtomicReference<TextureUploader.Staging>[] staging = new AtomicReference[READ_AHEAD + 1];
+	
+	// Frames of a sequence usually all have the same size: the last one tells how big the buffers should be
+	private long frameBytes = 0;
+	
+	private ImageSequence(Path source, String prefix, String suffix, int digits, int first, int last) {
+		this.source = source;
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.digits = digits;
+		this.first = first;
+		this.last = last;
+		
+		for(int i = 0; i < this.slotIndex.length; i++)
+			this.slotIndex[i] = -1;
+	}
+	
+	public static boolean isPattern(Path path) {
+		return FORMAT.matcher(path.getFileName().toString()).find();
+	}
+	
+	/*
+	 * source is either a pattern, or one of the files of the sequence (its trailing number is the frame number).
+	 * Returns null if there's no such sequence on disk.
+	 */
+	public static ImageSequence open(Path source) {
+		Path dir = source.toAbsolutePath().getParent();
+		String name = source.getFileName().toString();
+		
+		String prefix, suffix;
+		int digits;
+		
+		Matcher m = FORMAT.matcher(name);
+		if(m.find()) {
+			prefix = name.substring(0, m.start());
+			suffix = name.substring(m.end());
+			digits = m.group(2) != null ? Integer.parseInt(m.group(2)) : 0;
+		} else {
+			m = TRAILING_NUMBER.matcher(name);
+			if(!m.matches()) return null;
+			
+			prefix = m.group(1);
+			suffix = m.group(3) != null ? m.group(3) : "";
+			digits = m.group(2).startsWith("0") ? m.group(2).length() : 0;
+		}
+		
+		if(dir == null || !Files.isDirectory(dir)) return null;
+		
+		Pattern files = Pattern.compile(Pattern.quote(prefix) + "(\\d+)" + Pattern.quote(suffix));
+		int first = Integer.MAX_VALUE;
+		int last = Integer.MIN_VALUE;
+		
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path p : stream) {
+				Matcher f = files.matcher(p.getFileName().toString());
+				if(!f.matches() || f.group(1).length() > 9) continue;
+				
+				int n = Integer.parseInt(f.group(1));
+				first = Math.min(first, n);
+				last = Math.max(last, n);
+			}
+		} catch(IOException e) {
+			return null;
+		}
+		
+		if(first > last) return null;
+		
+		return new ImageSequence(source, dir.resolve(prefix).toString(), suffix, digits, first, last);
+	}
+	
+	public Path getSource() {
+		return this.source;
+	}
+	
+	public int getFirst() {
+		return this.first;
+	}
+	
+	public int getLast() {
+		return this.last;
+	}
+	
+	public Path getFramePath(int index) {
+		String n = Integer.toString(index);
+		
+		StringBuilder sb = new StringBuilder(this.prefix);
+		for(int i = n.length(); i < this.digits; i++) sb.append('0');
+		
+		return Paths.get(sb.append(n).append(this.suffix).toString());
+	}
+	
+	// Holds the first and last frames outside of the sequence
+	public int indexAt(float time, float fps) {
+		long i = this.first + (long) Math.floor(time * fps);
+		
+		return (int) Math.max(this.first, Math.min(this.last, i));
+	}
+	
+	// Starts decoding that frame and the next ones. True once it's decoded (or couldn't be), so get won't wait.
+	public boolean isReady(GL3 gl, int index) {
+		for(int i = 0; i <= READ_AHEAD && index + i <= this.last; i++)
+			this.request(gl, index + i);
+		
+		// Buffers go to the frames needed first, as long as there are free ones
+		for(int i = 0; i <= READ_AHEAD && index + i <= this.last && this.frameBytes != 0; i++) {
+			int s = (index + i) % this.slots.length;
+			if(this.slots[s].isDone() || this.staging[s].get() != null) continue;
+			
+			TextureUploader.Staging buf = TextureUploader.map(gl, this.frameBytes);
+			if(buf == null) break;
+			
+			this.staging[s].set(buf);
+		}
+		
+		return this.slots[index % this.slots.length].isDone();
+	}
+	
+	/*
+	 * Waits for that frame if it isn't decoded yet: while previewing, the render thread should check isReady first.
+	 * Returns null if the frame couldn't be loaded (e.g. a missing number).
+	 */
+	public ImagePixels get(GL3 gl, int index) {
+		this.isReady(gl, index);
+		
+		Future<ImagePixels> f = this.slots[index % this.slots.length];
+		
+		try {
+			ImagePixels px = f.get();
+			this.frameBytes = px.getByteCount();
+			
+			return px;
+		} catch(CancellationException | ExecutionException e) {
+			return null;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	// The buffer that frame's pixels may already be in, for TextureUploader.upload. The caller now owns it.
+	public TextureUploader.Staging takeStaging(int index) {
+		int s = index % this.slots.length;
+		
+		return this.slotIndex[s] == index ? this.staging[s].getAndSet(null) : null;
+	}
+	
+	public void dispose(GL3 gl) {
+		for(int i = 0; i < this.slots.length; i++) {
+			if(this.slots[i] != null) {
+				this.slots[i].cancel(false);
+				this.releaseStaging(gl, i);
+			}
+			
+			this.slots[i] = null;
+			this.slotIndex[i] = -1;
+		}
+	}
+	
+	private void request(GL3 gl, int index) {
+		int s = index % this.slots.length;
+		if(this.slotIndex[s] == index) return;
+		
+		if(this.slots[s] != null) {
+			this.slots[s].cancel(false);
+			this.releaseStaging(gl, s);
+		}
+		
+		this.slotIndex[s] = index;
+		this.staging[s] = new AtomicReference<>();
+		this.slots[s] = ImageLoader.decodeFrame(this.getFramePath(index), this.staging[s]);
+	}
+	
+	private void releaseStaging(GL3 gl, int s) {
+		TextureUploader.Staging buf = this.staging[s].getAndSet(null);
+		if(buf != null) TextureUploader.release(gl, buf);
+	}
+}
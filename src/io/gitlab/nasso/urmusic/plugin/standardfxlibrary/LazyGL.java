@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.util.function.Consumer;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * GL resources shared by the instances of an effect, set up when the first instance is.
+ * globalVideoSetup is called for every effect when the renderer starts, but projects rarely use every effect:
+ * building all the programs there would only slow the start down.
+ * GL thread only.
+ */
+final class LazyGL {
+	private final Consumer<GL3> setup, dispose;
+	private boolean ready = false;
+	
+	public LazyGL(Consumer<GL3> setup, Consumer<GL3> dispose) {
+		this.setup = setup;
+		this.dispose = dispose;
+	}
+	
+	// From the instances' setupVideo
+	public void setup(GL3 gl) {
+		if(this.ready) return;
+		this.ready = true;
+		
+		this.setup.accept(gl);
+	}
+	
+	// From globalVideoDispose. Only disposes what was set up.
+	public void dispose(GL3 gl) {
+		if(!this.ready) return;
+		this.ready = false;
+		
+		this.dispose.accept(gl);
+	}
+}
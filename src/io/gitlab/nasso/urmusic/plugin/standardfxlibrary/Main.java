@@ -19,10 +19,18 @@
  ******************************************************************************/
 package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import io.gitlab.nasso.urmusic.model.project.VideoEffect;
 import io.gitlab.nasso.urmusic.plugin.UrmPlugin;
 
 public class Main implements UrmPlugin {
+	// System property "urmstdfx.cacheDir", the user's cache folder by default
+	private static final Path CACHE_DIRECTORY = System.getProperty("urmstdfx.cacheDir") != null
+		? Paths.get(System.getProperty("urmstdfx.cacheDir"))
+		: userCacheDirectory().resolve("urmstdfx");
+	
 	private static final VideoEffect[] EFFECTS = {
 		// Basics
 		new ImageDisplayVFX(),
@@ -46,5 +54,31 @@ public class Main implements UrmPlugin {
 	}
 	
 	public void pluginDispose() {
+		FreqDataCache.clear();
+	}
+	
+	// Where data that can be recomputed but is worth keeping across launches goes. May not exist yet.
+	static Path getCacheDirectory() {
+		return CACHE_DIRECTORY;
+	}
+	
+	// Unlike the temporary folder, survives a reboot
+	private static Path userCacheDirectory() {
+		String os = System.getProperty("os.name", "").toLowerCase();
+		String home = System.getProperty("user.home");
+		
+		if(os.startsWith("windows")) {
+			String local = System.getenv("LOCALAPPDATA");
+			if(local != null && !local.isEmpty()) return Paths.get(local);
+			if(home != null) return Paths.get(home, "AppData", "Local");
+		} else if(os.startsWith("mac")) {
+			if(home != null) return Paths.get(home, "Library", "Caches");
+		} else {
+			String xdg = System.getenv("XDG_CACHE_HOME");
+			if(xdg != null && Paths.get(xdg).isAbsolute()) return Paths.get(xdg);
+			if(home != null) return Paths.get(home, ".cache");
+		}
+		
+		return Paths.get(System.getProperty("java.io.tmpdir"));
 	}
 }
@@ -39,6 +39,7 @@ public class MirrorVFX extends VideoEffect {
 	private NGLUtils glu = new NGLUtils("mirror effect global", MirrorVFX.class.getClassLoader());
 	
 	private int prog, quadVAO;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
 	private int loc_inputTex, loc_edge;
 	
 	public class MirrorVFXInstance extends VideoEffectInstance {
@@ -49,25 +50,28 @@ public class MirrorVFX extends VideoEffect {
 		}
 		
 		public void setupVideo(GL3 gl) {
+			MirrorVFX.this.video.setup(gl);
 		}
 		
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
 			Vector2fc edge0 = (Vector2fc) args.parameters.get(PNAME_edge0);
 			Vector2fc edge1 = (Vector2fc) args.parameters.get(PNAME_edge1);
 			boolean invert = args.parameters.get(PNAME_invert) == BoolValue.TRUE;
 			
-			gl.glUseProgram(MirrorVFX.this.prog);
-			MirrorVFX.this.glu.uniformTexture(gl, MirrorVFX.this.loc_inputTex, args.texInput, 0);
+			GLState.useProgram(gl, MirrorVFX.this.prog);
+			GLState.uniformTexture(gl, MirrorVFX.this.loc_inputTex, args.texInput, 0);
 			
 			float e0x = (+edge0.x() / (args.width /2)) * 0.5f + 0.5f;
 			float e0y = (-edge0.y() / (args.height/2)) * 0.5f + 0.5f;
 			float e1x = (+edge1.x() / (args.width /2)) * 0.5f + 0.5f;
 			float e1y = (-edge1.y() / (args.height/2)) * 0.5f + 0.5f;
 			
-			if(invert) gl.glUniform4f(MirrorVFX.this.loc_edge, e1x, e1y, e0x, e0y);
-			else gl.glUniform4f(MirrorVFX.this.loc_edge, e0x, e0y, e1x, e1y);
+			if(invert) GLState.uniform4f(gl, MirrorVFX.this.loc_edge, e1x, e1y, e0x, e0y);
+			else GLState.uniform4f(gl, MirrorVFX.this.loc_edge, e0x, e0y, e1x, e1y);
 			
-			gl.glBindVertexArray(MirrorVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, MirrorVFX.this.quadVAO);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 		
@@ -76,11 +80,17 @@ public class MirrorVFX extends VideoEffect {
 	}
 	
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		ProgramLoader.prefetch("fx/mirror/", "main_vert.vs", "main_frag.fs");
+		
 		return new MirrorVFXInstance();
 	}
 	
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = this.glu.createProgram(gl, "fx/mirror/", "main_vert.vs", "main_frag.fs");
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		this.prog = ProgramLoader.createProgram(gl, "fx/mirror/", "main_vert.vs", "main_frag.fs");
 		
 		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
 		this.loc_edge = gl.glGetUniformLocation(this.prog, "edge");
@@ -88,7 +98,13 @@ public class MirrorVFX extends VideoEffect {
 		this.quadVAO = this.glu.createFullQuadVAO(gl);
 	}
 	
+	private void disposeGlobalVideo(GL3 gl) {
+		GLState.deleteProgram(gl, this.prog);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
 		this.glu.dispose(gl);
 	}
 	
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import static com.jogamp.opengl.GL.*;
+
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+
+import org.joml.Vector2fc;
+import org.joml.Vector4fc;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL3;
+
+import io.gitlab.nasso.urmusic.common.BoolValue;
+import io.gitlab.nasso.urmusic.common.RGBA32;
+import io.gitlab.nasso.urmusic.model.project.VideoEffectArgs;
+import io.gitlab.nasso.urmusic.model.renderer.video.NGLUtils;
+
+/**
+ * Keeps the last output of an effect instance, to copy it back instead of rendering again
+ * when none of its parameters changed.
+ * The core doesn't tell when the input texture's content changes, so a copy of the input is kept too:
+ * the GPU compares it with the new one, and only skips the effect's drawing if they're the same.
+ * A hit still costs a full-frame blit and compare pass: only worth it for effects that cost a lot more (the blur).
+ * GL thread only.
+ */
+class OutputCache {
+	private static final NGLUtils glu = new NGLUtils("output cache glu", OutputCache.class.getClassLoader());
+	
+	// Shared by every cache, built on first use
+	private static int users = 0;
+	private static int compareProg = 0, quadVAO = 0;
+	private static int loc_inputTex, loc_copyTex;
+	
+	private final String[] paramNames;
+	
+	// Copies of the values: the core may hand us the same mutable object every frame
+	private final Object[] values;
+	private final float[][] vectors;
+	
+	private boolean valid = false;
+	private int width, height;
+	private long version;
+	
+	private final IntBuffer buf = Buffers.newDirectIntBuffer(1);
+	private int fbo = 0, tex = 0; // output
+	private int copyFbo = 0, copyTex = 0; // input
+	private int inputFbo = 0, query = 0;
+	private int texWidth, texHeight;
+	private boolean conditional = false;
+	
+	public OutputCache(String... paramNames) {
+		this.paramNames = paramNames;
+		this.values = new Object[paramNames.length];
+		this.vectors = new float[paramNames.length][4];
+	}
+	
+	// Called by the effects using a cache in their globalVideoSetup
+	public static void retain() {
+		users++;
+	}
+	
+	// Called by the effects using a cache in their globalVideoDispose. The last one deletes the shared program.
+	public static void dispose(GL3 gl) {
+		if(--users > 0) return;
+		
+		if(compareProg != 0) GLState.deleteProgram(gl, compareProg);
+		glu.dispose(gl);
+		
+		compareProg = 0;
+		quadVAO = 0;
+		users = 0;
+	}
+	
+	/*
+	 * version: anything else the output depends on, e.g. the generation of a loaded image.
+	 * Returns true if none of the parameters changed: the last output is then in args.fboOutput,
+	 * and the effect's drawing until store is skipped by the GPU unless the input changed.
+	 * The effect renders as usual either way, and must call store after.
+	 */
+	public boolean restore(GL3 gl, VideoEffectArgs args, long version) {
+		if(
+			!this.valid ||
+			this.width != args.width ||
+			this.height != args.height ||
+			this.version != version
+		) return false;
+		
+		for(int i = 0; i < this.paramNames.length; i++) {
+			if(!this.matches(i, args.parameters.get(this.paramNames[i])))
+				return false;
+		}
+		
+		this.blit(gl, this.fbo, args.fboOutput, args.width, args.height);
+		
+		if(compareProg == 0) {
+			compareProg = ProgramLoader.createProgram(gl, "output_cache/", "main_vert.vs", "compare_frag.fs");
+			loc_inputTex = gl.glGetUniformLocation(compareProg, "inputTex");
+			loc_copyTex = gl.glGetUniformLocation(compareProg, "copyTex");
+			quadVAO = glu.createFullQuadVAO(gl);
+		}
+		
+		// Any sample passing means a texel of the input changed
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, args.fboOutput);
+		gl.glViewport(0, 0, args.width, args.height);
+		gl.glColorMask(false, false, false, false);
+		GLState.useProgram(gl, compareProg);
+		GLState.uniformTexture(gl, loc_inputTex, args.texInput, 0);
+		GLState.uniformTexture(gl, loc_copyTex, this.copyTex, 1);
+		GLState.bindVertexArray(gl, quadVAO);
+		
+		gl.glBeginQuery(GL3.GL_ANY_SAMPLES_PASSED, this.query);
+		gl.glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+		gl.glEndQuery(GL3.GL_ANY_SAMPLES_PASSED);
+		gl.glColorMask(true, true, true, true);
+		
+		// Waits on the GPU side, the CPU never reads the result
+		gl.glBeginConditionalRender(this.query, GL3.GL_QUERY_WAIT);
+		this.conditional = true;
+		
+		return true;
+	}
+	
+	// To call once the effect rendered into args.fboOutput, after restore if it returned true
+	public void store(GL3 gl, VideoEffectArgs args, long version) {
+		if(this.conditional) {
+			// Hit: the key is the same, and the copies only need refreshing if the input changed.
+			// Blits are rendering commands too: the GPU discards them along with the effect's drawing.
+			if(args.cancelled) this.valid = false;
+			else this.copy(gl, args);
+			
+			gl.glEndConditionalRender();
+			this.conditional = false;
+		} else {
+			this.valid = false;
+			
+			if(!args.cancelled && this.snapshot(args)) {
+				this.width = args.width;
+				this.height = args.height;
+				this.version = version;
+				
+				this.setupTextures(gl, args.width, args.height);
+				this.copy(gl, args);
+				
+				this.valid = true;
+			}
+		}
+		
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, args.fboOutput);
+	}
+	
+	// Frees the copies, e.g. when caching gets disabled
+	public void clear(GL3 gl) {
+		this.valid = false;
+		
+		if(this.fbo != 0) {
+			this.buf.put(0, this.fbo);
+			gl.glDeleteFramebuffers(1, this.buf);
+			this.buf.put(0, this.copyFbo);
+			gl.glDeleteFramebuffers(1, this.buf);
+			this.buf.put(0, this.inputFbo);
+			gl.glDeleteFramebuffers(1, this.buf);
+			this.buf.put(0, this.tex);
+			gl.glDeleteTextures(1, this.buf);
+			this.buf.put(0, this.copyTex);
+			gl.glDeleteTextures(1, this.buf);
+			this.buf.put(0, this.query);
+			gl.glDeleteQueries(1, this.buf);
+			GLState.invalidateTextures();
+			
+			this.fbo = 0;
+			this.tex = 0;
+			this.copyFbo = 0;
+			this.copyTex = 0;
+			this.inputFbo = 0;
+			this.query = 0;
+		}
+	}
+	
+	private boolean snapshot(VideoEffectArgs args) {
+		for(int i = 0; i < this.paramNames.length; i++) {
+			if(!this.snapshot(i, args.parameters.get(this.paramNames[i])))
+				return false; // Don't know how to compare that, never hit
+		}
+		
+		return true;
+	}
+	
+	private boolean snapshot(int i, Object val) {
+		if(val instanceof Vector2fc) {
+			Vector2fc v = (Vector2fc) val;
+			this.vectors[i][0] = v.x();
+			this.vectors[i][1] = v.y();
+			this.values[i] = Vector2fc.class;
+		} else if(val instanceof Vector4fc) {
+			Vector4fc v = (Vector4fc) val;
+			this.vectors[i][0] = v.x();
+			this.vectors[i][1] = v.y();
+			this.vectors[i][2] = v.z();
+			this.vectors[i][3] = v.w();
+			this.values[i] = Vector4fc.class;
+		} else if(val instanceof RGBA32) {
+			this.values[i] = ((RGBA32) val).getRGBA();
+		} else if(val == null || val instanceof Number || val instanceof BoolValue || val instanceof Path || val instanceof String) {
+			this.values[i] = val; // Immutable
+		} else {
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private boolean matches(int i, Object val) {
+		Object stored = this.values[i];
+		float[] vec = this.vectors[i];
+		
+		if(stored == Vector2fc.class) {
+			if(!(val instanceof Vector2fc)) return false;
+			
+			Vector2fc v = (Vector2fc) val;
+			return vec[0] == v.x() && vec[1] == v.y();
+		} else if(stored == Vector4fc.class) {
+			if(!(val instanceof Vector4fc)) return false;
+			
+			Vector4fc v = (Vector4fc) val;
+			return vec[0] == v.x() && vec[1] == v.y() && vec[2] == v.z() && vec[3] == v.w();
+		} else if(val instanceof RGBA32) {
+			return stored instanceof Integer && (Integer) stored == ((RGBA32) val).getRGBA();
+		}
+		
+		return stored == null ? val == null : stored.equals(val);
+	}
+	
+	private void setupTextures(GL3 gl, int width, int height) {
+		if(this.fbo == 0) {
+			gl.glGenTextures(1, this.buf);
+			this.tex = this.buf.get(0);
+			gl.glGenTextures(1, this.buf);
+			this.copyTex = this.buf.get(0);
+			gl.glGenFramebuffers(1, this.buf);
+			this.fbo = this.buf.get(0);
+			gl.glGenFramebuffers(1, this.buf);
+			this.copyFbo = this.buf.get(0);
+			gl.glGenFramebuffers(1, this.buf);
+			this.inputFbo = this.buf.get(0);
+			gl.glGenQueries(1, this.buf);
+			this.query = this.buf.get(0);
+			
+			this.texWidth = -1;
+		}
+		
+		if(this.texWidth == width && this.texHeight == height)
+			return;
+		
+		this.setupTexture(gl, this.fbo, this.tex, width, height);
+		this.setupTexture(gl, this.copyFbo, this.copyTex, width, height);
+		
+		this.texWidth = width;
+		this.texHeight = height;
+	}
+	
+	private void setupTexture(GL3 gl, int fbo, int tex, int width, int height) {
+		gl.glBindTexture(GL_TEXTURE_2D, tex);
+		gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		GLState.invalidateTextures();
+		
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+		gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, tex, 0);
+	}
+	
+	private void copy(GL3 gl, VideoEffectArgs args) {
+		this.blit(gl, args.fboOutput, this.fbo, args.width, args.height);
+		
+		gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, this.inputFbo);
+		gl.glFramebufferTexture2D(GL3.GL_READ_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, args.texInput, 0);
+		gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, this.copyFbo);
+		gl.glBlitFramebuffer(0, 0, args.width, args.height, 0, 0, args.width, args.height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+	}
+	
+	private void blit(GL3 gl, int src, int dst, int width, int height) {
+		gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, src);
+		gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, dst);
+		gl.glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST);
+	}
+}
@@ -34,6 +34,7 @@ public class PolarCoordsVFX extends VideoEffect {
 	private NGLUtils glu = new NGLUtils("polar coords global", PolarCoordsVFX.class.getClassLoader());
 	
 	private int prog, quadVAO;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
 	private int loc_inputTex, loc_aspectRatio, loc_modePolarToRect;
 	
 	private class PolarCoordsVFXInstance extends VideoEffectInstance {
@@ -42,17 +43,20 @@ public class PolarCoordsVFX extends VideoEffect {
 		}
 		
 		public void setupVideo(GL3 gl) {
+			PolarCoordsVFX.this.video.setup(gl);
 		}
 
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
 			boolean polarToRect = args.parameters.get(PNAME_polarToRect) == BoolValue.TRUE;
 			
-			gl.glUseProgram(PolarCoordsVFX.this.prog);
-			PolarCoordsVFX.this.glu.uniformTexture(gl, PolarCoordsVFX.this.loc_inputTex, args.texInput, 0);
-			gl.glUniform1f(PolarCoordsVFX.this.loc_aspectRatio, (float) args.width / args.height);
-			gl.glUniform1i(PolarCoordsVFX.this.loc_modePolarToRect, polarToRect ? 1 : 0);
+			GLState.useProgram(gl, PolarCoordsVFX.this.prog);
+			GLState.uniformTexture(gl, PolarCoordsVFX.this.loc_inputTex, args.texInput, 0);
+			GLState.uniform1f(gl, PolarCoordsVFX.this.loc_aspectRatio, (float) args.width / args.height);
+			GLState.uniform1i(gl, PolarCoordsVFX.this.loc_modePolarToRect, polarToRect ? 1 : 0);
 			
-			gl.glBindVertexArray(PolarCoordsVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, PolarCoordsVFX.this.quadVAO);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 
@@ -63,11 +67,17 @@ public class PolarCoordsVFX extends VideoEffect {
 	}
 	
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		ProgramLoader.prefetch("fx/polar_coords/", "main_vert.vs", "main_frag.fs");
+		
 		return new PolarCoordsVFXInstance();
 	}
 
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = this.glu.createProgram(gl, "fx/polar_coords/", "main_vert.vs", "main_frag.fs");
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		this.prog = ProgramLoader.createProgram(gl, "fx/polar_coords/", "main_vert.vs", "main_frag.fs");
 		
 		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
 		this.loc_aspectRatio = gl.glGetUniformLocation(this.prog, "aspectRatio");
@@ -76,7 +86,13 @@ public class PolarCoordsVFX extends VideoEffect {
 		this.quadVAO = this.glu.createFullQuadVAO(gl);
 	}
 
+	private void disposeGlobalVideo(GL3 gl) {
+		GLState.deleteProgram(gl, this.prog);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
 		this.glu.dispose(gl);
 	}
 
@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Builds the effects' programs, like NGLUtils.createProgram, but keeps the linked binaries in the "programs" folder of
+ * the plugin's cache directory so later launches skip compiling. Binaries are keyed by the sources (includes resolved)
+ * and the driver, a binary the driver rejects is replaced by a fresh build.
+ * Programs must be deleted by their owner with GLState.deleteProgram. GL thread only, except for the sources and prefetch.
+ */
+final class ProgramLoader {
+	private static final String ROOT = "res/shaders/gl3/";
+	private static final Pattern VERSION_LINE = Pattern.compile("^[ \t]*#version[^\n]*$", Pattern.MULTILINE);
+	private static final Pattern INCLUDE = Pattern.compile("^[ \t]*#include[ \t]*<([^>]+)>.*$", Pattern.MULTILINE);
+	
+	private static final int MAGIC = 0x55524D42; // "URMB"
+	private static final int VERSION = 1;
+	private static final Path DIRECTORY = Main.getCacheDirectory().resolve("programs");
+	private static final String DRIVER_FILE = "driver.txt";
+	
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "urmstdfx shader loader");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		return t;
+	});
+	
+	// Resolved sources by path
+	private static final Map<String, String> sources = new HashMap<>();
+	
+	// Binary files read ahead by prefetch, by path, until their program is created
+	private static final Map<Path, byte[]> binaries = new HashMap<>();
+	// Binary files of the programs created so far, there's no point reading them again
+	private static final Set<Path> created = new HashSet<>();
+	// Prefetch requests already queued
+	private static final Set<String> prefetched = new HashSet<>();
+	
+	// null until the first build (needs a context), false if the driver can't give binaries back
+	private static volatile Boolean binarySupported = null;
+	private static volatile String driver = null;
+	
+	private static final IntBuffer tmpInt = Buffers.newDirectIntBuffer(1);
+	private static final IntBuffer tmpFormat = Buffers.newDirectIntBuffer(1);
+	
+	private ProgramLoader() {
+	}
+	
+	// Returns 0 if the program couldn't be built (the logs are printed)
+	public static int createProgram(GL3 gl, String folder, String vertFile, String fragFile) {
+		return createProgram(gl, folder, vertFile, fragFile, null);
+	}
+	
+	// Same, with extra lines (e.g. #define) inserted after the #version line of both shaders
+	public static int createProgram(GL3 gl, String folder, String vertFile, String fragFile, String header) {
+		String vert, frag;
+		
+		try {
+			vert = withHeader(getSource(folder + vertFile), header);
+			frag = withHeader(getSource(folder + fragFile), header);
+		} catch(IOException e) {
+			System.err.println("Couldn't read shader sources: " + e.getMessage());
+			return 0;
+		}
+		
+		checkDriver(gl);
+		
+		Path file = binarySupported ? binaryFile(driver, vert, frag) : null;
+		if(file != null) {
+			synchronized(binaries) {
+				created.add(file);
+			}
+			
+			int prog = loadBinary(gl, file);
+			if(prog != 0) return prog;
+		}
+		
+		int prog = build(gl, folder + vertFile, vert, folder + fragFile, frag, file != null);
+		if(prog != 0 && file != null) saveBinary(gl, prog, file);
+		
+		return prog;
+	}
+	
+	/*
+	 * Any thread. Reads and resolves the sources of the programs made of the given files (vertex shaders end with .vs)
+	 * in the background, and their cached binaries once the driver is known, so createProgram doesn't wait on the disk.
+	 * Only the first request for the same files does anything.
+	 */
+	public static void prefetch(String folder, String... files) {
+		prefetch(folder, new String[] { null }, files);
+	}
+	
+	// Same, for the programs built with each of the given headers (see createProgram)
+	public static void prefetch(String folder, String[] headers, String... files) {
+		String key = folder + Arrays.toString(files) + Arrays.toString(headers);
+		synchronized(prefetched) {
+			if(!prefetched.add(key)) return;
+		}
+		
+		executor.execute(() -> {
+			List<String> vert = new ArrayList<>();
+			List<String> frag = new ArrayList<>();
+			
+			try {
+				for(String f : files)
+					(f.endsWith(".vs") ? vert : frag).add(getSource(folder + f));
+			} catch(IOException e) {
+				return; // createProgram will report it
+			}
+			
+			// Before the first build, the driver of the last launch is the best guess
+			String drv = driver != null ? driver : lastDriver();
+			if(drv == null || Boolean.FALSE.equals(binarySupported)) return;
+			
+			for(String header : headers) {
+				for(String vs : vert) {
+					for(String fs : frag)
+						readBinary(binaryFile(drv, withHeader(vs, header), withHeader(fs, header)));
+				}
+			}
+		});
+	}
+	
+	private static void readBinary(Path file) {
+		if(file == null || !Files.isRegularFile(file)) return;
+		
+		synchronized(binaries) {
+			if(binaries.containsKey(file) || created.contains(file)) return;
+		}
+		
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			
+			synchronized(binaries) {
+				// The program may have been created while reading
+				if(!created.contains(file)) binaries.put(file, bytes);
+			}
+		} catch(IOException e) {
+		}
+	}
+	
+	// Any thread. Reads the file and resolves its includes (once, they're kept afterwards).
+	public static String getSource(String path) throws IOException {
+		synchronized(sources) {
+			String src = sources.get(path);
+			if(src != null) return src;
+		}
+		
+		String src = resolve(path, new HashSet<>());
+		
+		synchronized(sources) {
+			sources.put(path, src);
+		}
+		
+		return src;
+	}
+	
+	private static String withHeader(String src, String header) {
+		if(header == null) return src;
+		
+		// #version must stay the first directive
+		Matcher m = VERSION_LINE.matcher(src);
+		int at = m.find() ? m.end() : 0;
+		
+		return src.substring(0, at) + "\n" + header + "\n" + src.substring(at);
+	}
+	
+	// #include <name> is replaced by include/name.glsl, each file is included only once
+	private static String resolve(String path, Set<String> included) throws IOException {
+		String src = read(ROOT + path);
+		
+		Matcher m = INCLUDE.matcher(src);
+		StringBuffer out = new StringBuffer(src.length());
+		
+		while(m.find()) {
+			String inc = "include/" + m.group(1) + ".glsl";
+			String body = included.add(inc) ? resolve(inc, included) : "";
+			
+			m.appendReplacement(out, Matcher.quoteReplacement(body));
+		}
+		
+		m.appendTail(out);
+		return out.toString();
+	}
+	
+	private static String read(String resource) throws IOException {
+		try(InputStream in = ProgramLoader.class.getClassLoader().getResourceAsStream(resource)) {
+			if(in == null) throw new IOException("Not found: " + resource);
+			
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			
+			int len;
+			while((len = in.read(buf)) != -1)
+				out.write(buf, 0, len);
+			
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+	
+	private static void checkDriver(GL3 gl) {
+		if(binarySupported != null) return;
+		
+		driver = gl.glGetString(GL3.GL_VENDOR) + "\n" + gl.glGetString(GL3.GL_RENDERER) + "\n" + gl.glGetString(GL3.GL_VERSION);
+		
+		binarySupported = false;
+		if(gl.isFunctionAvailable("glGetProgramBinary") && gl.isFunctionAvailable("glProgramBinary")) {
+			gl.glGetIntegerv(GL3.GL_NUM_PROGRAM_BINARY_FORMATS, tmpInt);
+			binarySupported = tmpInt.get(0) > 0;
+		}
+		
+		if(binarySupported && !driver.equals(lastDriver())) {
+			try {
+				Files.createDirectories(DIRECTORY);
+				Files.write(DIRECTORY.resolve(DRIVER_FILE), driver.getBytes(StandardCharsets.UTF_8));
+			} catch(IOException e) {
+			}
+		}
+	}
+	
+	private static String lastDriver() {
+		try {
+			return new String(Files.readAllBytes(DIRECTORY.resolve(DRIVER_FILE)), StandardCharsets.UTF_8);
+		} catch(IOException e) {
+			return null;
+		}
+	}
+	
+	private static int build(GL3 gl, String vertName, String vert, String fragName, String frag, boolean retrievable) {
+		int vs = compile(gl, GL3.GL_VERTEX_SHADER, vertName, vert);
+		int fs = compile(gl, GL3.GL_FRAGMENT_SHADER, fragName, frag);
+		
+		if(vs == 0 || fs == 0) {
+			if(vs != 0) gl.glDeleteShader(vs);
+			if(fs != 0) gl.glDeleteShader(fs);
+			return 0;
+		}
+		
+		int prog = gl.glCreateProgram();
+		gl.glAttachShader(prog, vs);
+		gl.glAttachShader(prog, fs);
+		
+		// Same locations whether the program comes from the sources or from a binary
+		gl.glBindAttribLocation(prog, 0, "position_quad");
+		gl.glBindFragDataLocation(prog, 0, "out_color");
+		
+		if(retrievable) gl.glProgramParameteri(prog, GL3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL3.GL_TRUE);
+		
+		gl.glLinkProgram(prog);
+		
+		gl.glDetachShader(prog, vs);
+		gl.glDetachShader(prog, fs);
+		gl.glDeleteShader(vs);
+		gl.glDeleteShader(fs);
+		
+		gl.glGetProgramiv(prog, GL3.GL_LINK_STATUS, tmpInt);
+		if(tmpInt.get(0) != GL3.GL_TRUE) {
+			gl.glGetProgramiv(prog, GL3.GL_INFO_LOG_LENGTH, tmpInt);
+			ByteBuffer log = Buffers.newDirectByteBuffer(Math.max(1, tmpInt.get(0)));
+			gl.glGetProgramInfoLog(prog, log.capacity(), tmpInt, log);
+			
+			System.err.println("Couldn't link " + vertName + " + " + fragName + ":\n" + toString(log, tmpInt.get(0)));
+			GLState.deleteProgram(gl, prog);
+			return 0;
+		}
+		
+		return prog;
+	}
+	
+	private static int compile(GL3 gl, int type, String name, String src) {
+		int shader = gl.glCreateShader(type);
+		gl.glShaderSource(shader, 1, new String[] { src }, null);
+		gl.glCompileShader(shader);
+		
+		gl.glGetShaderiv(shader, GL3.GL_COMPILE_STATUS, tmpInt);
+		if(tmpInt.get(0) != GL3.GL_TRUE) {
+			gl.glGetShaderiv(shader, GL3.GL_INFO_LOG_LENGTH, tmpInt);
+			ByteBuffer log = Buffers.newDirectByteBuffer(Math.max(1, tmpInt.get(0)));
+			gl.glGetShaderInfoLog(shader, log.capacity(), tmpInt, log);
+			
+			System.err.println("Couldn't compile " + name + ":\n" + toString(log, tmpInt.get(0)));
+			gl.glDeleteShader(shader);
+			return 0;
+		}
+		
+		return shader;
+	}
+	
+	private static String toString(ByteBuffer log, int length) {
+		byte[] bytes = new byte[Math.max(0, Math.min(length, log.capacity()))];
+		log.get(bytes);
+		
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	// File layout: magic, version, binary format, length, binary
+	private static int loadBinary(GL3 gl, Path file) {
+		byte[] bytes;
+		synchronized(binaries) {
+			bytes = binaries.remove(file);
+		}
+		
+		if(bytes == null) {
+			if(!Files.isRegularFile(file)) return 0;
+			
+			try {
+				bytes = Files.readAllBytes(file);
+			} catch(IOException e) {
+				return 0;
+			}
+		}
+		
+		ByteBuffer data = Buffers.newDirectByteBuffer(bytes.length).order(ByteOrder.BIG_ENDIAN);
+		data.put(bytes).flip();
+		
+		if(data.remaining() < 16 || data.getInt() != MAGIC || data.getInt() != VERSION) {
+			delete(file);
+			return 0;
+		}
+		
+		int format = data.getInt();
+		int length = data.getInt();
+		if(length != data.remaining()) {
+			delete(file);
+			return 0;
+		}
+		
+		int prog = gl.glCreateProgram();
+		gl.glProgramBinary(prog, format, data.slice(), length);
+		
+		// Rejected, e.g. after a driver update that didn't change the version string
+		gl.glGetProgramiv(prog, GL3.GL_LINK_STATUS, tmpInt);
+		if(tmpInt.get(0) != GL3.GL_TRUE) {
+			GLState.deleteProgram(gl, prog);
+			delete(file);
+			return 0;
+		}
+		
+		return prog;
+	}
+	
+	// Failures are ignored, the program will just be compiled again next time
+	private static void saveBinary(GL3 gl, int prog, Path file) {
+		gl.glGetProgramiv(prog, GL3.GL_PROGRAM_BINARY_LENGTH, tmpInt);
+		int length = tmpInt.get(0);
+		if(length <= 0) return;
+		
+		ByteBuffer binary = Buffers.newDirectByteBuffer(length);
+		gl.glGetProgramBinary(prog, length, tmpInt, tmpFormat, binary);
+		
+		length = tmpInt.get(0);
+		int format = tmpFormat.get(0);
+		if(length <= 0) return;
+		
+		ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(format).putInt(length);
+		
+		byte[] bytes = new byte[16 + length];
+		System.arraycopy(header.array(), 0, bytes, 0, 16);
+		binary.get(bytes, 16, length);
+		
+		Path tmp = null;
+		try {
+			Files.createDirectories(DIRECTORY);
+			
+			tmp = Files.createTempFile(DIRECTORY, "store", ".tmp");
+			Files.write(tmp, bytes);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			tmp = null;
+		} catch(IOException e) {
+		} finally {
+			if(tmp != null) delete(tmp);
+		}
+	}
+	
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch(IOException e) {
+		}
+	}
+	
+	private static Path binaryFile(String driver, String vert, String frag) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(driver.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update(vert.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+			md.update(frag.getBytes(StandardCharsets.UTF_8));
+			
+			StringBuilder name = new StringBuilder();
+			for(byte b : md.digest()) name.append(String.format("%02x", b & 0xFF));
+			
+			return DIRECTORY.resolve(name.append(".bin").toString());
+		} catch(NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import com.jogamp.opengl.GL3;
+
+/**
+ * Specialisations of a program, each one built with "#define NAME index" the first time it's used.
+ * Meant for settings that rarely change but cost a branch per fragment (e.g. the Porter-Duff operator).
+ * GL thread only.
+ */
+final class ProgramVariants {
+	// Porter-Duff operators, see porterDuff.glsl
+	public static final String PD_OP = "PD_OP";
+	public static final int PD_OP_COUNT = 11;
+	
+	private final String folder, vertFile, fragFile;
+	private final String define;
+	private final String[] uniforms;
+	
+	private final int[] programs;
+	private final int[][] locations;
+	
+	public ProgramVariants(String folder, String vertFile, String fragFile, String define, int count, String... uniforms) {
+		this.folder = folder;
+		this.vertFile = vertFile;
+		this.fragFile = fragFile;
+		this.define = define;
+		this.uniforms = uniforms;
+		
+		this.programs = new int[count];
+		this.locations = new int[count][];
+	}
+	
+	// Any thread. Reads ahead the binaries of the variants built by the previous launches, see ProgramLoader.prefetch
+	public void prefetch() {
+		String[] headers = new String[this.programs.length];
+		for(int i = 0; i < headers.length; i++)
+			headers[i] = this.header(i);
+		
+		ProgramLoader.prefetch(this.folder, headers, this.vertFile, this.fragFile);
+	}
+	
+	// Binds the variant (built if needed) and returns its uniform locations, in the order given to the constructor
+	public int[] use(GL3 gl, int variant) {
+		variant = Math.max(0, Math.min(variant, this.programs.length - 1));
+		
+		if(this.locations[variant] == null) {
+			int prog = ProgramLoader.createProgram(gl, this.folder, this.vertFile, this.fragFile, this.header(variant));
+			
+			int[] locs = new int[this.uniforms.length];
+			for(int i = 0; i < locs.length; i++)
+				locs[i] = gl.glGetUniformLocation(prog, this.uniforms[i]);
+			
+			this.programs[variant] = prog;
+			this.locations[variant] = locs;
+		}
+		
+		GLState.useProgram(gl, this.programs[variant]);
+		return this.locations[variant];
+	}
+	
+	private String header(int variant) {
+		return "#define " + this.define + " " + variant;
+	}
+	
+	public void dispose(GL3 gl) {
+		for(int i = 0; i < this.programs.length; i++) {
+			if(this.locations[i] != null) GLState.deleteProgram(gl, this.programs[i]);
+			
+			this.programs[i] = 0;
+			this.locations[i] = null;
+		}
+	}
+}
@@ -42,8 +42,18 @@ public class RectangleMaskVFX extends VideoEffect {
 	
 	private NGLUtils glu = new NGLUtils("rectangle mask global", RectangleMaskVFX.class.getClassLoader());
 	
-	private int prog, quadVAO;
-	private int loc_inputTex, loc_size, loc_color, loc_points, loc_blending, loc_invert;
+	// One program per blending mode
+	private static final int LOC_inputTex = 0;
+	private static final int LOC_size = 1;
+	private static final int LOC_color = 2;
+	private static final int LOC_points = 3;
+	private static final int LOC_invert = 4;
+	private final ProgramVariants progs = new ProgramVariants("fx/rectangle_mask/", "main_vert.vs", "main_frag.fs", ProgramVariants.PD_OP, ProgramVariants.PD_OP_COUNT,
+		"inputTex", "colorSize", "params.color", "params.points", "params.invert"
+	);
+	
+	private int quadVAO;
+	private final LazyGL video = new LazyGL(this::setupGlobalVideo, this::disposeGlobalVideo);
 	
 	public class RectangleMaskVFXInstance extends VideoEffectInstance {
 		public void setupParameters() {
@@ -66,29 +76,31 @@ public class RectangleMaskVFX extends VideoEffect {
 		}
 		
 		public void setupVideo(GL3 gl) {
+			RectangleMaskVFX.this.video.setup(gl);
 		}
 		
 		public void applyVideo(GL3 gl, VideoEffectArgs args) {
+			GLState.begin();
+			
 			RGBA32 color = (RGBA32) args.parameters.get(PNAME_color);
 			Vector4fc bounds = (Vector4fc) args.parameters.get(PNAME_bounds);
 			int blending = (int) args.parameters.get(PNAME_blendingMode);
 			boolean invert = args.parameters.get(PNAME_invert) == BoolValue.TRUE;
 			
-			gl.glUseProgram(RectangleMaskVFX.this.prog);
-			RectangleMaskVFX.this.glu.uniformTexture(gl, RectangleMaskVFX.this.loc_inputTex, args.texInput, 0);
+			int[] loc = RectangleMaskVFX.this.progs.use(gl, blending);
+			GLState.uniformTexture(gl, loc[LOC_inputTex], args.texInput, 0);
 			
-			gl.glUniform2f(RectangleMaskVFX.this.loc_size, args.width, args.height);
-			gl.glUniform4f(RectangleMaskVFX.this.loc_color, color.getRedf(), color.getGreenf(), color.getBluef(), color.getAlphaf());
-			gl.glUniform4f(RectangleMaskVFX.this.loc_points,
+			GLState.uniform2f(gl, loc[LOC_size], args.width, args.height);
+			GLState.uniform4f(gl, loc[LOC_color], color.getRedf(), color.getGreenf(), color.getBluef(), color.getAlphaf());
+			GLState.uniform4f(gl, loc[LOC_points],
 					bounds.x(),
 					-bounds.y(),
 					bounds.x() + bounds.z(),
 					-bounds.y() - bounds.w()
 			);
-			gl.glUniform1i(RectangleMaskVFX.this.loc_blending, blending);
-			gl.glUniform1i(RectangleMaskVFX.this.loc_invert, invert ? 1 : 0);
+			GLState.uniform1i(gl, loc[LOC_invert], invert ? 1 : 0);
 			
-			gl.glBindVertexArray(RectangleMaskVFX.this.quadVAO);
+			GLState.bindVertexArray(gl, RectangleMaskVFX.this.quadVAO);
 			gl.glDrawArrays(GL.GL_TRIANGLE_STRIP, 0, 4);
 		}
 		
@@ -97,24 +109,27 @@ public class RectangleMaskVFX extends VideoEffect {
 	}
 	
 	public VideoEffectInstance instance() {
+		// The project is loading, get the sources ready for setupGlobalVideo
+		this.progs.prefetch();
+		
 		return new RectangleMaskVFXInstance();
 	}
 	
 	public void globalVideoSetup(GL3 gl) {
-		this.prog = this.glu.createProgram(gl, "fx/rectangle_mask/", "main_vert.vs", "main_frag.fs");
-		
-		this.loc_inputTex = gl.glGetUniformLocation(this.prog, "inputTex");
-		this.loc_size = gl.glGetUniformLocation(this.prog, "colorSize");
-		
-		this.loc_color = gl.glGetUniformLocation(this.prog, "params.color");
-		this.loc_points = gl.glGetUniformLocation(this.prog, "params.points");
-		this.loc_blending = gl.glGetUniformLocation(this.prog, "params.blending");
-		this.loc_invert = gl.glGetUniformLocation(this.prog, "params.invert");
-		
+	}
+	
+	private void setupGlobalVideo(GL3 gl) {
+		// The programs themselves are built by progs, for the blending modes actually used
 		this.quadVAO = this.glu.createFullQuadVAO(gl);
 	}
 	
+	private void disposeGlobalVideo(GL3 gl) {
+		this.progs.dispose(gl);
+	}
+	
 	public void globalVideoDispose(GL3 gl) {
+		this.video.dispose(gl);
+		
 		this.glu.dispose(gl);
 	}
 	
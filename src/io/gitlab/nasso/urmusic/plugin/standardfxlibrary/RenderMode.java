@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import io.gitlab.nasso.urmusic.controller.UrmusicController;
+
+/**
+ * Tells the preview apart from an export, so the preview can skip waiting on the disk while an export gets every frame exact.
+ * The core doesn't say, but the preview always renders the frame under the cursor (playing moves it),
+ * while an export moves through time without touching it.
+ * Until the cursor is seen moving, frames are treated as exported: waiting is always correct, only slower.
+ * GL thread only.
+ */
+final class RenderMode {
+	private static boolean started = false;
+	private static float lastTime;
+	private static int lastCursor;
+	private static boolean interactive = false;
+	
+	private RenderMode() {
+	}
+	
+	// Every effect asks for the same frame time, only the first one of each frame compares
+	public static boolean isInteractive(float time) {
+		if(started && time == lastTime) return interactive;
+		
+		int cursor = UrmusicController.getFrameCursor();
+		interactive = started && cursor != lastCursor;
+		
+		started = true;
+		lastTime = time;
+		lastCursor = cursor;
+		
+		return interactive;
+	}
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import static com.jogamp.opengl.GL.*;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Scratch framebuffers shared by every effect of the plugin.
+ * Effects acquire them for the duration of an applyVideo and release them right after,
+ * so 20 blurred layers only need as many targets as a single one.
+ * GL thread only.
+ */
+final class RenderTargetPool {
+	// Free targets beyond that are deleted, least recently used first
+	private static final int MAX_FREE = 8;
+	// Free targets unused for that long are deleted
+	private static final long MAX_IDLE_NANOS = 10_000_000_000L;
+	
+	public static final class Target {
+		private int fbo, tex;
+		private int width, height, internalFormat;
+		private long lastUsed;
+		
+		private Target() {
+		}
+		
+		public int getFramebuffer() {
+			return this.fbo;
+		}
+		
+		public int getTexture() {
+			return this.tex;
+		}
+		
+		public int getWidth() {
+			return this.width;
+		}
+		
+		public int getHeight() {
+			return this.height;
+		}
+	}
+	
+	private static final IntBuffer buf = Buffers.newDirectIntBuffer(1);
+	
+	private static final List<Target> free = new ArrayList<>();
+	private static int acquired = 0;
+	private static int users = 0;
+	
+	private RenderTargetPool() {
+	}
+	
+	// Called by the effects using the pool in their globalVideoSetup
+	public static void retain() {
+		users++;
+	}
+	
+	// Called by the effects using the pool in their globalVideoDispose. The last one deletes everything.
+	public static void dispose(GL3 gl) {
+		if(--users > 0) return;
+		
+		for(Target t : free)
+			delete(gl, t);
+		
+		free.clear();
+		users = 0;
+	}
+	
+	// internalFormat is GL_RGBA8 or GL_R8
+	public static Target acquire(GL3 gl, int width, int height, int internalFormat) {
+		trim(gl, System.nanoTime());
+		
+		Target t = null;
+		int reuse = -1;
+		
+		// Same size if possible, else the least recently used of the same format: resizing beats creating
+		for(int i = 0; i < free.size(); i++) {
+			Target f = free.get(i);
+			if(f.internalFormat != internalFormat) continue;
+			
+			if(f.width == width && f.height == height) {
+				reuse = i;
+				break;
+			}
+			
+			if(reuse == -1 || f.lastUsed < free.get(reuse).lastUsed)
+				reuse = i;
+		}
+		
+		if(reuse != -1) {
+			t = free.remove(reuse);
+			if(t.width != width || t.height != height) allocate(gl, t, width, height);
+		} else {
+			t = create(gl, width, height, internalFormat);
+		}
+		
+		acquired++;
+		return t;
+	}
+	
+	public static void release(GL3 gl, Target t) {
+		t.lastUsed = System.nanoTime();
+		free.add(t);
+		acquired--;
+		
+		trim(gl, t.lastUsed);
+	}
+	
+	public static int getFreeCount() {
+		return free.size();
+	}
+	
+	public static int getAcquiredCount() {
+		return acquired;
+	}
+	
+	private static void trim(GL3 gl, long now) {
+		for(int i = free.size() - 1; i >= 0; i--) {
+			if(now - free.get(i).lastUsed > MAX_IDLE_NANOS)
+				delete(gl, free.remove(i));
+		}
+		
+		while(free.size() > MAX_FREE) {
+			int lru = 0;
+			for(int i = 1; i < free.size(); i++) {
+				if(free.get(i).lastUsed < free.get(lru).lastUsed) lru = i;
+			}
+			
+			delete(gl, free.remove(lru));
+		}
+	}
+	
+	private static Target create(GL3 gl, int width, int height, int internalFormat) {
+		Target t = new Target();
+		t.internalFormat = internalFormat;
+		
+		gl.glGenTextures(1, buf);
+		t.tex = buf.get(0);
+		
+		gl.glBindTexture(GL_TEXTURE_2D, t.tex);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+		allocate(gl, t, width, height);
+		
+		gl.glGenFramebuffers(1, buf);
+		t.fbo = buf.get(0);
+		
+		gl.glBindFramebuffer(GL_FRAMEBUFFER, t.fbo);
+		gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, t.tex, 0);
+		
+		return t;
+	}
+	
+	private static void allocate(GL3 gl, Target t, int width, int height) {
+		int format = t.internalFormat == GL3.GL_R8 ? GL3.GL_RED : GL_RGBA;
+		
+		gl.glBindTexture(GL_TEXTURE_2D, t.tex);
+		gl.glTexImage2D(GL_TEXTURE_2D, 0, t.internalFormat, width, height, 0, format, GL_UNSIGNED_BYTE, null);
+		GLState.invalidateTextures();
+		
+		t.width = width;
+		t.height = height;
+	}
+	
+	private static void delete(GL3 gl, Target t) {
+		buf.put(0, t.fbo);
+		gl.glDeleteFramebuffers(1, buf);
+		buf.put(0, t.tex);
+		gl.glDeleteTextures(1, buf);
+		GLState.invalidateTextures();
+	}
+}
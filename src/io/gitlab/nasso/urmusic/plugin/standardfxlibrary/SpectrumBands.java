@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+/**
+ * Answers average, RMS and max queries over any range of FFT bins in O(1).
+ * Built once per frame from the frequency data (in dB).
+ */
+class SpectrumBands {
+	public static final int AVERAGE = 0;
+	public static final int RMS = 1;
+	public static final int MAX = 2;
+	
+	// Keeps the prefix sums finite when a bin is -Infinity dB
+	private static final float DB_FLOOR = -1000.0f;
+	private static final double DB_TO_POWER = Math.log(10.0) / 10.0;
+	
+	private int size = 0;
+	
+	// prefix[i] = sum of the values of the bins [0, i)
+	private double[] prefix = new double[1];
+	
+	// Same with the linear power of each bin, for RMS
+	private double[] powerPrefix = new double[1];
+	
+	// sparse[k][i] = max of the bins [i, i + 2^k)
+	private float[][] sparse = new float[0][];
+	
+	public void build(float[] data, int size, int aggregation) {
+		this.size = size;
+		
+		switch(aggregation) {
+			case AVERAGE:
+				if(this.prefix.length < size + 1) this.prefix = new double[size + 1];
+				
+				for(int i = 0; i < size; i++)
+					this.prefix[i + 1] = this.prefix[i] + Math.max(data[i], DB_FLOOR);
+				break;
+			case RMS:
+				if(this.powerPrefix.length < size + 1) this.powerPrefix = new double[size + 1];
+				
+				for(int i = 0; i < size; i++)
+					this.powerPrefix[i + 1] = this.powerPrefix[i] + Math.exp(Math.max(data[i], DB_FLOOR) * DB_TO_POWER);
+				break;
+			case MAX:
+				int levels = 32 - Integer.numberOfLeadingZeros(size);
+				
+				if(this.sparse.length < levels || this.sparse[0].length < size) {
+					this.sparse = new float[levels][];
+					
+					for(int k = 0; k < levels; k++)
+						this.sparse[k] = new float[size];
+				}
+				
+				System.arraycopy(data, 0, this.sparse[0], 0, size);
+				
+				for(int k = 1; k < levels; k++) {
+					float[] prev = this.sparse[k - 1];
+					float[] curr = this.sparse[k];
+					int half = 1 << (k - 1);
+					
+					for(int i = 0; i + (1 << k) <= size; i++)
+						curr[i] = Math.max(prev[i], prev[i + half]);
+				}
+				break;
+		}
+	}
+	
+	// Value of the bins [lo, hi) in dB, hi > lo
+	public float query(int lo, int hi, int aggregation) {
+		int n = hi - lo;
+		
+		switch(aggregation) {
+			case AVERAGE:
+				return (float) ((this.prefix[hi] - this.prefix[lo]) / n);
+			case RMS:
+				// Mean of the power, back to dB
+				return (float) (10.0 * Math.log10((this.powerPrefix[hi] - this.powerPrefix[lo]) / n));
+			case MAX:
+				int k = 31 - Integer.numberOfLeadingZeros(n);
+				
+				return Math.max(this.sparse[k][lo], this.sparse[k][hi - (1 << k)]);
+			default:
+				return 0.0f;
+		}
+	}
+	
+	public int getSize() {
+		return this.size;
+	}
+}
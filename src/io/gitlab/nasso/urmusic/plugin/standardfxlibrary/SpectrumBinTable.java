@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import io.gitlab.nasso.urmusic.common.MathUtils;
+
+/**
+ * Maps each bar of a spectrum to the FFT bins it samples, and to the band of bins it covers.
+ * Only rebuilt when the bar count, frequency range, layout, sample rate or FFT size change.
+ */
+class SpectrumBinTable {
+	private int count = -1;
+	private float minFreq = Float.NaN;
+	private float maxFreq = Float.NaN;
+	private boolean logarithmic = false;
+	private float sampleRate = Float.NaN;
+	private int fftSize = -1;
+	
+	// Bar i samples data[index[i]] + (data[index[i] + 1] - data[index[i]]) * frac[i]
+	private int[] index = new int[0];
+	private float[] frac = new float[0];
+	
+	// Bar i covers the bins [bandLo[i], bandHi[i])
+	private int[] bandLo = new int[0];
+	private int[] bandHi = new int[0];
+	
+	// Bin position range (linear layout uses normalized frequencies to stay bit-exact with the old sampling)
+	private float normMin, normMax;
+	private float logMin, logRatio;
+	
+	// Frequencies are in Hz. Returns true if the table has been rebuilt.
+	public boolean update(int count, float minFreq, float maxFreq, boolean logarithmic, float sampleRate, int fftSize) {
+		if(
+			this.count == count &&
+			this.minFreq == minFreq &&
+			this.maxFreq == maxFreq &&
+			this.logarithmic == logarithmic &&
+			this.sampleRate == sampleRate &&
+			this.fftSize == fftSize
+		) return false;
+		
+		this.count = count;
+		this.minFreq = minFreq;
+		this.maxFreq = maxFreq;
+		this.logarithmic = logarithmic;
+		this.sampleRate = sampleRate;
+		this.fftSize = fftSize;
+		
+		if(this.index.length < count) {
+			this.index = new int[count];
+			this.frac = new float[count];
+			this.bandLo = new int[count];
+			this.bandHi = new int[count];
+		}
+		
+		this.normMin = minFreq / sampleRate;
+		this.normMax = maxFreq / sampleRate;
+		
+		// A log scale can't start at 0 Hz: start at the first bin at least
+		this.logMin = Math.max(this.normMin * fftSize, 1.0f);
+		this.logRatio = Math.max(this.normMax * fftSize, this.logMin) / this.logMin;
+		
+		int last = fftSize - 1;
+		
+		for(int i = 0; i < count; i++) {
+			float p = count > 1 ? (float) i / (count - 1) : 0.0f;
+			float pos = this.binPosition(p);
+			
+			if(!(pos > 0.0f)) { // also catches NaN
+				this.index[i] = 0;
+				this.frac[i] = 0.0f;
+			} else if(pos >= last) {
+				this.index[i] = last - 1;
+				this.frac[i] = 1.0f;
+			} else {
+				this.index[i] = (int) pos;
+				this.frac[i] = pos - this.index[i];
+			}
+			
+			// The band goes half way to the neighbouring bars
+			float pLo = count > 1 ? MathUtils.clamp((i - 0.5f) / (count - 1), 0.0f, 1.0f) : 0.0f;
+			float pHi = count > 1 ? MathUtils.clamp((i + 0.5f) / (count - 1), 0.0f, 1.0f) : 1.0f;
+			
+			int lo = (int) Math.floor(this.binPosition(pLo));
+			int hi = (int) Math.ceil(this.binPosition(pHi));
+			
+			lo = Math.min(Math.max(lo, 0), last);
+			hi = Math.min(Math.max(hi, lo + 1), fftSize);
+			
+			this.bandLo[i] = lo;
+			this.bandHi[i] = hi;
+		}
+		
+		return true;
+	}
+	
+	private float binPosition(float p) {
+		if(this.logarithmic) return this.logMin * (float) Math.pow(this.logRatio, p);
+		
+		return MathUtils.lerp(this.normMin, this.normMax, p) * this.fftSize;
+	}
+	
+	public int getCount() {
+		return this.count;
+	}
+	
+	public float sample(float[] data, int i) {
+		int idx = this.index[i];
+		float a = data[idx];
+		
+		return a + (data[idx + 1] - a) * this.frac[i];
+	}
+	
+	public int getBandLow(int i) {
+		return this.bandLo[i];
+	}
+	
+	public int getBandHigh(int i) {
+		return this.bandHi[i];
+	}
+}
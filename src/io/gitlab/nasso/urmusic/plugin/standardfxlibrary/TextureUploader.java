@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+package io.gitlab.nasso.urmusic.plugin.standardfxlibrary;
+
+import static com.jogamp.opengl.GL.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Uploads ImagePixels through a ring of pixel unpack buffers.
+ * A buffer can be mapped ahead of time and handed to a decoding thread, which copies the pixels into it:
+ * the render thread then only unmaps it and starts the transfer to the texture, which runs on the GPU's side.
+ * Buffers are used in turn, so one can be filled while the GPU is still reading another.
+ * GL thread only, except Staging.fill.
+ */
+final class TextureUploader {
+	// System property "urmstdfx.uploadBuffers"
+	private static final int BUFFERS = Math.max(2, Integer.getInteger("urmstdfx.uploadBuffers", 4));
+	
+	private static final IntBuffer pbos = Buffers.newDirectIntBuffer(BUFFERS);
+	private static final long[] capacity = new long[BUFFERS];
+	private static final boolean[] mapped = new boolean[BUFFERS];
+	private static int next = 0;
+	
+	// A mapped buffer, waiting for its pixels
+	public static final class Staging {
+		private final int index;
+		private final ByteBuffer memory;
+		
+		private boolean filled = false;
+		private boolean unmapped = false;
+		
+		private Staging(int index, ByteBuffer memory) {
+			this.index = index;
+			this.memory = memory;
+		}
+		
+		// Any thread. False if px doesn't have the size the buffer was mapped for, or if it isn't mapped anymore.
+		public synchronized boolean fill(ImagePixels px) {
+			if(this.unmapped || px.getByteCount() != this.memory.capacity()) return false;
+			
+			ByteBuffer dst = this.memory.duplicate();
+			dst.clear();
+			dst.put(px.getData());
+			
+			this.filled = true;
+			return true;
+		}
+		
+		private synchronized boolean isFilled() {
+			return this.filled;
+		}
+		
+		// Once unmapped, the memory must not be touched: fill waits for the copy in progress, if any
+		private synchronized void detach() {
+			this.unmapped = true;
+		}
+	}
+	
+	private TextureUploader() {
+	}
+	
+	// Maps the next free buffer for size bytes. null if they're all in use, or if it can't be mapped.
+	public static Staging map(GL3 gl, long size) {
+		if(pbos.get(0) == 0) gl.glGenBuffers(BUFFERS, pbos);
+		
+		int i = next;
+		while(mapped[i]) {
+			i = (i + 1) % BUFFERS;
+			if(i == next) return null;
+		}
+		
+		next = (i + 1) % BUFFERS;
+		
+		gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, pbos.get(i));
+		
+		if(capacity[i] != size) {
+			gl.glBufferData(GL3.GL_PIXEL_UNPACK_BUFFER, size, null, GL3.GL_STREAM_DRAW);
+			capacity[i] = size;
+		}
+		
+		// Invalidating lets the driver hand out fresh storage if a transfer is still reading the old one
+		ByteBuffer memory = gl.glMapBufferRange(GL3.GL_PIXEL_UNPACK_BUFFER, 0, size, GL3.GL_MAP_WRITE_BIT | GL3.GL_MAP_INVALIDATE_BUFFER_BIT);
+		gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+		
+		if(memory == null) return null;
+		
+		mapped[i] = true;
+		return new Staging(i, memory);
+	}
+	
+	// For a buffer that won't be uploaded after all, e.g. its frame got skipped
+	public static void release(GL3 gl, Staging staging) {
+		gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, pbos.get(staging.index));
+		unmap(gl, staging);
+		gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+	
+	// tex gets (re)allocated if its size changed. Mipmaps are generated by the GPU.
+	public static void upload(GL3 gl, int tex, ImagePixels px, boolean reallocate) {
+		upload(gl, tex, null, px, reallocate);
+	}
+	
+	/*
+	 * Same, from a buffer mapped for px. If it wasn't filled yet (the decoding thread didn't get it in time),
+	 * the render thread copies the pixels itself.
+	 */
+	public static void upload(GL3 gl, int tex, Staging staging, ImagePixels px, boolean reallocate) {
+		if(staging != null && !staging.isFilled() && !staging.fill(px)) {
+			release(gl, staging);
+			staging = null;
+		}
+		
+		if(staging == null) {
+			staging = map(gl, px.getByteCount());
+			if(staging != null) staging.fill(px);
+		}
+		
+		boolean fromBuffer = false;
+		if(staging != null) {
+			gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, pbos.get(staging.index));
+			
+			// False if the content got lost while mapped (e.g. a display mode change)
+			fromBuffer = unmap(gl, staging);
+			if(!fromBuffer) gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+		}
+		
+		gl.glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+		gl.glBindTexture(GL_TEXTURE_2D, tex);
+		
+		if(!fromBuffer) {
+			// Straight from client memory
+			if(reallocate) gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, px.getWidth(), px.getHeight(), 0, GL_RGBA, GL_UNSIGNED_BYTE, px.getData());
+			else gl.glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, px.getWidth(), px.getHeight(), GL_RGBA, GL_UNSIGNED_BYTE, px.getData());
+		} else if(reallocate) {
+			gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, px.getWidth(), px.getHeight(), 0, GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+		} else {
+			gl.glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, px.getWidth(), px.getHeight(), GL_RGBA, GL_UNSIGNED_BYTE, 0L);
+		}
+		
+		gl.glGenerateMipmap(GL_TEXTURE_2D);
+		GLState.invalidateTextures();
+		
+		// Any other upload (NGLUtils, GLVG...) would read from the PBO otherwise
+		gl.glBindBuffer(GL3.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+	
+	public static void dispose(GL3 gl) {
+		if(pbos.get(0) != 0) gl.glDeleteBuffers(BUFFERS, pbos);
+		
+		for(int i = 0; i < BUFFERS; i++) {
+			pbos.put(i, 0);
+			capacity[i] = 0;
+			mapped[i] = false;
+		}
+		
+		next = 0;
+	}
+	
+	// The buffer must be bound
+	private static boolean unmap(GL3 gl, Staging staging) {
+		staging.detach();
+		mapped[staging.index] = false;
+		
+		return gl.glUnmapBuffer(GL3.GL_PIXEL_UNPACK_BUFFER);
+	}
+}
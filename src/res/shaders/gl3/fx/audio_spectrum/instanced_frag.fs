@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+#version 330 core
+
+#define MODE_LINES 0
+#define MODE_DOTS 1
+
+#define CAP_BUTT 0
+#define CAP_ROUND 1
+#define CAP_SQUARE 2
+
+uniform vec4 color;
+uniform int mode;
+uniform int lineCaps;
+
+in vec2 pass_local;
+flat in float pass_length;
+flat in float pass_halfWidth;
+
+out vec4 out_color;
+
+// Signed distance to the edge of the shape, negative inside
+float shapeDistance() {
+	if(mode == MODE_DOTS) return length(pass_local) - pass_halfWidth;
+	
+	if(lineCaps == CAP_ROUND) {
+		return distance(pass_local, vec2(clamp(pass_local.x, 0.0, pass_length), 0.0)) - pass_halfWidth;
+	}
+	
+	float ext = lineCaps == CAP_SQUARE ? pass_halfWidth : 0.0;
+	vec2 d = vec2(max(-ext - pass_local.x, pass_local.x - pass_length - ext), abs(pass_local.y) - pass_halfWidth);
+	
+	return max(d.x, d.y);
+}
+
+void main() {
+	float coverage = clamp(0.5 - shapeDistance(), 0.0, 1.0);
+	if(coverage == 0.0) discard;
+	
+	out_color = vec4(color.rgb, color.a * coverage);
+}
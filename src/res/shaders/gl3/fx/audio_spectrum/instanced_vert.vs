@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+#version 330 core
+
+#define MODE_LINES 0
+#define MODE_DOTS 1
+
+#define FACE_A 0
+#define FACE_B 1
+#define FACE_BOTH 2
+#define FACE_ALTERNATE 3
+
+#define CAP_BUTT 0
+
+#define M_PI_2 6.28318530718
+#define M_HALF_PI 1.57079632679
+
+struct Parameters {
+	vec4 startEnd;
+	vec4 expand;
+	vec2 viewSize;
+	
+	float size;
+	int count;
+	int mode;
+	int faceMode;
+	int lineCaps;
+	
+	bool polar;
+};
+
+#define u_startPoint params.startEnd.xy
+#define u_endPoint params.startEnd.zw
+#define u_expand params.expand.xy
+#define u_minExpand params.expand.zw
+#define u_viewSize params.viewSize
+#define u_size params.size
+#define u_count params.count
+#define u_mode params.mode
+#define u_faceMode params.faceMode
+#define u_lineCaps params.lineCaps
+#define u_polar params.polar
+
+uniform samplerBuffer amplitudes;
+uniform Parameters params;
+
+// Position relative to the shape: x along the segment, y across it, in pixels
+out vec2 pass_local;
+flat out float pass_length;
+flat out float pass_halfWidth;
+
+vec2 toPolar(vec2 v) {
+	float a = v.x / u_viewSize.x * M_PI_2 + M_HALF_PI;
+	
+	return vec2(cos(a), sin(a)) * v.y;
+}
+
+void main() {
+	int bar = gl_InstanceID;
+	int face = u_faceMode;
+	
+	if(u_mode == MODE_DOTS && u_faceMode == FACE_BOTH) {
+		// Two dots per bar
+		bar = gl_InstanceID / 2;
+		face = gl_InstanceID % 2;
+	} else if(u_faceMode == FACE_ALTERNATE) {
+		face = bar % 2;
+	}
+	
+	float p = float(bar) / float(u_count - 1);
+	float freqVal = texelFetch(amplitudes, bar).r;
+	
+	vec2 s = mix(u_startPoint, u_endPoint, p);
+	vec2 offset = freqVal * u_expand + u_minExpand;
+	vec2 a = s + vec2(-offset.x, +offset.y);
+	vec2 b = s + vec2(+offset.x, -offset.y);
+	
+	vec2 corner = vec2(gl_VertexID & 1, gl_VertexID >> 1);
+	vec2 pos;
+	
+	if(u_mode == MODE_DOTS) {
+		vec2 center = face == FACE_A ? a : b;
+		if(u_polar) center = toPolar(center);
+		
+		// 1 pixel margin for the anti-aliasing
+		pass_local = (corner * 2.0 - 1.0) * (u_size + 1.0);
+		pass_length = 0.0;
+		pass_halfWidth = u_size;
+		
+		pos = center + pass_local;
+	} else {
+		vec2 p0 = face == FACE_BOTH ? a : s;
+		vec2 p1 = face == FACE_A ? a : b;
+		
+		if(u_polar) {
+			p0 = toPolar(p0);
+			p1 = toPolar(p1);
+		}
+		
+		float halfWidth = u_size * 0.5;
+		float len = distance(p0, p1);
+		vec2 dir = len > 0.0 ? (p1 - p0) / len : vec2(1.0, 0.0);
+		vec2 normal = vec2(-dir.y, dir.x);
+		float ext = (u_lineCaps == CAP_BUTT ? 0.0 : halfWidth) + 1.0;
+		
+		pass_local = vec2(mix(-ext, len + ext, corner.x), mix(-halfWidth - 1.0, halfWidth + 1.0, corner.y));
+		pass_length = len;
+		pass_halfWidth = halfWidth;
+		
+		pos = p0 + dir * pass_local.x + normal * pass_local.y;
+	}
+	
+	gl_Position = vec4(pos / (u_viewSize * 0.5), 0.0, 1.0);
+}
@@ -21,14 +21,17 @@
 
 #include <porterDuff>
 
-uniform sampler2D inputTex;
+uniform sampler2D inputTex; // Coverage only, in the red channel
 uniform sampler2D destTex;
 uniform int blendingMode;
+uniform vec4 color;
 
 in vec2 pass_quad_uv;
 
 out vec4 out_color;
 
 void main() {
-	out_color = PD_compose(texture(inputTex, pass_quad_uv), texture(destTex, pass_quad_uv), blendingMode);
+	vec4 src = vec4(color.rgb, color.a * texture(inputTex, pass_quad_uv).r);
+	
+	out_color = PD_compose(src, texture(destTex, pass_quad_uv), blendingMode);
 }
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+#version 330 core
+
+// Half a texel of the input, zeroed on the axes that aren't blurred
+uniform vec2 halfTexel;
+uniform sampler2D inputTex;
+
+in vec2 pass_quad_uv;
+
+out vec4 out_color;
+
+// Dual filter downsample: 5 bilinear fetches, the center (weighted 4) and the 4 diagonals
+void main() {
+	vec2 o = halfTexel;
+	vec2 p = vec2(o.x, -o.y);
+	
+	vec4 sum = texture(inputTex, pass_quad_uv) * 4.0;
+	sum += texture(inputTex, pass_quad_uv - o);
+	sum += texture(inputTex, pass_quad_uv + o);
+	sum += texture(inputTex, pass_quad_uv - p);
+	sum += texture(inputTex, pass_quad_uv + p);
+	
+	out_color = sum / 8.0;
+}
@@ -19,54 +19,35 @@
  ******************************************************************************/
 #version 330 core
 
-uniform vec4 sigma_radius_offsetScale;
+// GaussianKernel.MAX_TAPS / 2
+#define MAX_TAP_PAIRS 96
+
+uniform vec4 center_taps_offsetScale;
+uniform vec4 taps[MAX_TAP_PAIRS];
 uniform sampler2D inputTex;
 
-#define uSigma sigma_radius_offsetScale.x
-#define uRadius sigma_radius_offsetScale.y
-#define uOffsetScale sigma_radius_offsetScale.zw
+#define uCenterWeight center_taps_offsetScale.x
+#define uTapCount int(center_taps_offsetScale.y)
+#define uOffsetScale center_taps_offsetScale.zw
 
 in vec2 pass_quad_uv;
 
 out vec4 out_color;
 
-// TODO:	Make use of the bilinear sampling trick to reduce
-//  		the number of texture fetches needed for a gaussian blur.
-
 void main() {
-	vec4 original_color = texture(inputTex, pass_quad_uv);
-	
-	int iRadius = int(uRadius);
+	vec4 avg_color = texture(inputTex, pass_quad_uv) * uCenterWeight;
 	
-    if (iRadius == 0) {
-        out_color = original_color;
-        return;
+	// Each tap lands between two texels, so the bilinear filter fetches both with the right weights
+	// Offsets and weights are computed by GaussianKernel, already normalized
+	int tapCount = uTapCount;
+	for(int i = 0; i < tapCount; i++) {
+		vec4 pair = taps[i >> 1];
+		vec2 tap = (i & 1) == 0 ? pair.xy : pair.zw;
+		vec2 offset = uOffsetScale * tap.x;
+		
+		avg_color += texture(inputTex, pass_quad_uv - offset) * tap.y;
+		avg_color += texture(inputTex, pass_quad_uv + offset) * tap.y;
 	}
 	
-	// Incremental Gaussian Coefficient Calculation (See GPU Gems 3 pp. 877 - 889)
-	// Also: https://github.com/servo/webrender/blob/master/webrender/res/cs_blur.glsl
-	vec3 gauss_coefficient;
-    gauss_coefficient.x = 1.0 / (sqrt(2.0 * 3.14159265) * uSigma);
-    gauss_coefficient.y = exp(-0.5 / (uSigma * uSigma));
-    gauss_coefficient.z = gauss_coefficient.y * gauss_coefficient.y;
-
-    float gauss_coefficient_sum = 0.0;
-    vec4 avg_color = original_color * gauss_coefficient.x;
-    gauss_coefficient_sum += gauss_coefficient.x;
-    gauss_coefficient.xy *= gauss_coefficient.yz;
-
-    for (int i=1 ; i <= iRadius ; ++i) {
-        vec2 offset = uOffsetScale * float(i);
-
-        vec2 st0 = pass_quad_uv.xy - offset;
-        avg_color += texture(inputTex, st0) * gauss_coefficient.x;
-
-        vec2 st1 = pass_quad_uv.xy + offset;
-        avg_color += texture(inputTex, st1) * gauss_coefficient.x;
-
-        gauss_coefficient_sum += 2.0 * gauss_coefficient.x;
-        gauss_coefficient.xy *= gauss_coefficient.yz;
-    }
-
-	out_color = avg_color / gauss_coefficient_sum;
+	out_color = avg_color;
 }
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+#version 330 core
+
+// Half a texel of the input, zeroed on the axes that aren't blurred
+uniform vec2 halfTexel;
+uniform sampler2D inputTex;
+
+in vec2 pass_quad_uv;
+
+out vec4 out_color;
+
+// Dual filter upsample: a tent made of 8 bilinear fetches around the pixel
+void main() {
+	vec2 o = halfTexel;
+	
+	vec4 sum = texture(inputTex, pass_quad_uv + vec2(-o.x * 2.0, 0.0));
+	sum += texture(inputTex, pass_quad_uv + vec2(o.x * 2.0, 0.0));
+	sum += texture(inputTex, pass_quad_uv + vec2(0.0, -o.y * 2.0));
+	sum += texture(inputTex, pass_quad_uv + vec2(0.0, o.y * 2.0));
+	sum += texture(inputTex, pass_quad_uv + vec2(-o.x, o.y)) * 2.0;
+	sum += texture(inputTex, pass_quad_uv + vec2(o.x, o.y)) * 2.0;
+	sum += texture(inputTex, pass_quad_uv + vec2(-o.x, -o.y)) * 2.0;
+	sum += texture(inputTex, pass_quad_uv + vec2(o.x, -o.y)) * 2.0;
+	
+	out_color = sum / 12.0;
+}
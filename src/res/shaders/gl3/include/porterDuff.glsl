@@ -45,8 +45,13 @@
 //                                               PD_BLEND_SRC_OUT, PD_BLEND_DST_OUT,
 //                                               PD_BLEND_SRC_ATOP, PD_BLEND_DST_ATOP,
 //                                               PD_BLEND_COPY, PD_BLEND_ADD or PD_BLEND_XOR.
+//   Ignored when PD_OP is defined: the operator is then known at compile time and the switch below folds away.
 // 
 vec4 PD_compose(vec4 src, vec4 dst, int op) {
+#ifdef PD_OP
+	op = PD_OP;
+#endif
+	
 	vec3 cs = src.rgb;
 	vec3 cb = dst.rgb;
 	
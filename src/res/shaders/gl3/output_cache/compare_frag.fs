@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * urmusic - The Free and Open Source Music Visualizer Tool
+ * Copyright (C) 2018  nasso (https://github.com/nasso)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ * 
+ * Contact "nasso": nassomails -at- gmail dot com
+ ******************************************************************************/
+#version 330 core
+
+uniform sampler2D inputTex;
+uniform sampler2D copyTex;
+
+// Only the texels that changed since the copy pass, they're counted by an occlusion query
+void main() {
+	ivec2 p = ivec2(gl_FragCoord.xy);
+	
+	if(texelFetch(inputTex, p, 0) == texelFetch(copyTex, p, 0)) discard;
+}